@@ -0,0 +1,103 @@
+package com.jacky.bench;
+
+import com.jacky.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author jacky
+ * @time 2021-02-06 21:00
+ * @discription 阻塞I/O下平台线程池和虚拟线程的吞吐量对比
+ *              模拟MailService.sendRegistrationMail()和慢查询这类大部分时间在等待的任务：
+ *              一次性提交bench.tasks个任务，每个任务sleep bench.blockMillis毫秒，
+ *              分别交给固定大小的平台线程池(相当于Tomcat默认的maxThreads=200)和每个任务一个虚拟线程的执行器，
+ *              统计总耗时、吞吐量和从提交到完成的延迟。
+ *              平台线程池的吞吐量上限是poolSize / blockMillis，虚拟线程则只受任务数限制。
+ *              最后输出一行两者的对比。
+ *
+ *              运行：mvn -Pbench,virtual-threads compile exec:exec@blocking-io
+ *              参数(系统属性)：
+ *                  bench.tasks       任务数，默认10000
+ *                  bench.blockMillis 每个任务阻塞的时间(毫秒)，默认100
+ *                  bench.poolSize    平台线程池的线程数，默认200
+ *              通过virtual-threads profile运行时(-Dthreads.virtual=true)必须测虚拟线程，JDK不支持时直接失败；
+ *              单独使用bench profile时，JDK 21以下只测平台线程池，并在对比中注明虚拟线程被跳过。
+ */
+public class BlockingIoBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockingIoBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        int tasks = Integer.getInteger("bench.tasks", 10000);
+        int blockMillis = Integer.getInteger("bench.blockMillis", 100);
+        int poolSize = Integer.getInteger("bench.poolSize", 200);
+
+        logger.info("{} tasks, each blocks {} ms, java {}", tasks, blockMillis, System.getProperty("java.version"));
+        Result platform = run("platform(" + poolSize + ")", Executors.newFixedThreadPool(poolSize), tasks, blockMillis);
+        if (!VirtualThreads.isEnabled() && !VirtualThreads.isSupported()) {
+            logger.warn("virtual threads require JDK 21 or later, skipped.");
+            logger.info("comparison: {} {} tasks/s, virtual skipped (java {})", platform.name,
+                    String.format("%.0f", platform.throughput), System.getProperty("java.version"));
+            return;
+        }
+        // -Dthreads.virtual=true而JDK不支持时，newExecutor()抛出异常，不会悄悄跳过:
+        Result virtual = run("virtual", VirtualThreads.newExecutor("bench-vt-"), tasks, blockMillis);
+        logger.info("comparison: virtual {} tasks/s vs {} {} tasks/s ({}x), p99 {} ms vs {} ms",
+                String.format("%.0f", virtual.throughput), platform.name, String.format("%.0f", platform.throughput),
+                String.format("%.1f", virtual.throughput / platform.throughput), virtual.p99Millis, platform.p99Millis);
+    }
+
+    private static Result run(String name, ExecutorService executor, int tasks, int blockMillis) throws InterruptedException {
+        // 预热，创建好平台线程:
+        execute(executor, Math.min(tasks, 1000), 1);
+        long start = System.nanoTime();
+        long[] latencies = execute(executor, tasks, blockMillis);
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        Arrays.sort(latencies);
+        Result result = new Result(name, tasks / (elapsed / 1e9), latencies[(int) (latencies.length * 0.99)] / 1_000_000);
+        logger.info("{}: {} ms, {} tasks/s, latency p50 {} ms, p99 {} ms, max {} ms", name,
+                elapsed / 1_000_000, String.format("%.0f", result.throughput),
+                latencies[latencies.length / 2] / 1_000_000, result.p99Millis, latencies[latencies.length - 1] / 1_000_000);
+        return result;
+    }
+
+    private static long[] execute(ExecutorService executor, int tasks, int blockMillis) throws InterruptedException {
+        long[] latencies = new long[tasks];
+        CountDownLatch done = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            int n = i;
+            long submitTime = System.nanoTime();
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latencies[n] = System.nanoTime() - submitTime;
+                done.countDown();
+            });
+        }
+        done.await();
+        return latencies;
+    }
+
+    static final class Result {
+        final String name;
+        final double throughput;
+        final long p99Millis;
+
+        Result(String name, double throughput, long p99Millis) {
+            this.name = name;
+            this.throughput = throughput;
+            this.p99Millis = p99Millis;
+        }
+    }
+}
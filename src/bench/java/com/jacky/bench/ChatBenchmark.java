@@ -0,0 +1,321 @@
+package com.jacky.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.jacky.WebConfig;
+import com.jacky.webSocket.ChatCodec;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.WsWebSocketContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-01-27 19:40
+ * @discription 聊天室广播压测
+ *              在进程内启动完整的Web应用，用N个WebSocket客户端连接/chat的同一个聊天室，
+ *              由其中若干个客户端按固定速率发言，每条消息的内容带上发送时刻的System.nanoTime()，
+ *              所有客户端收到广播后计算端到端延迟。客户端和服务器在同一个JVM中，nanoTime可以直接相减。
+ *
+ *              运行：mvn -Pbench compile exec:java -Dbench.clients=1000 -Dbench.rate=200
+ *              参数(系统属性)：
+ *                  bench.clients   客户端数量，默认1000
+ *                  bench.senders   其中发言的客户端数量，默认10
+ *                  bench.rate      每秒发送的消息总数，默认100
+ *                  bench.warmup    预热时间(秒)，预热期间的数据不计入结果，默认10
+ *                  bench.duration  测量时间(秒)，默认30
+ *                  bench.protocol  子协议，chat.json或chat.cbor，默认chat.json
+ *                  bench.room      聊天室，默认bench
+ *                  bench.port      端口，默认0即随机端口
+ *
+ *              除非显式指定-Dchat.inbound.rate，否则压测时会放开服务器对每个会话的接收限速。
+ *              10k个客户端在同一进程内需要约2万个文件描述符，运行前先调大ulimit -n。
+ *              应用不依赖外部服务即可运行，JMS Broker不存在时只会在日志中看到邮件监听器的重连警告。
+ */
+public class ChatBenchmark {
+
+    static final String PREFIX = "bench:";
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.getInteger("bench.clients", 1000);
+        int senders = Math.min(Integer.getInteger("bench.senders", 10), clients);
+        int rate = Integer.getInteger("bench.rate", 100);
+        int warmup = Integer.getInteger("bench.warmup", 10);
+        int duration = Integer.getInteger("bench.duration", 30);
+        String protocol = System.getProperty("bench.protocol", ChatCodec.PROTOCOL_JSON);
+        String room = System.getProperty("bench.room", "bench");
+
+        // 压测的是广播，不是限速，未指定时放开每个会话的接收限速(系统属性优先于chat.properties):
+        if (System.getProperty("chat.inbound.rate") == null) {
+            System.setProperty("chat.inbound.rate", String.valueOf(rate));
+            System.setProperty("chat.inbound.burst", String.valueOf(Math.max(10, rate)));
+        }
+        Tomcat tomcat = WebConfig.createTomcat(Integer.getInteger("bench.port", 0));
+        tomcat.getConnector().setProperty("maxConnections", String.valueOf(clients + 1000));
+        tomcat.start();
+        URI uri = URI.create("ws://localhost:" + tomcat.getConnector().getLocalPort() + "/chat/" + room);
+
+        ChatBenchmark benchmark = new ChatBenchmark(protocol);
+        try {
+            benchmark.connect(uri, clients);
+            benchmark.run(senders, rate, warmup, duration);
+        } finally {
+            benchmark.disconnect();
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    private final String protocol;
+    private final ObjectMapper mapper;
+    private final List<WebSocketSession> sessions = Collections.synchronizedList(new ArrayList<>());
+
+    private final Histogram latency = new Histogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final AtomicInteger closed = new AtomicInteger();
+    private volatile boolean recording;
+
+    ChatBenchmark(String protocol) {
+        this.protocol = protocol;
+        this.mapper = ChatCodec.PROTOCOL_CBOR.equals(protocol) ? new ObjectMapper(new CBORFactory()) : new ObjectMapper();
+    }
+
+    /**
+     * 分批建立连接，每批等待全部握手完成
+     */
+    void connect(URI uri, int clients) throws Exception {
+        WsWebSocketContainer container = new WsWebSocketContainer();
+        // 历史消息帧可能超过默认的8KB缓冲:
+        container.setDefaultMaxTextMessageBufferSize(1 << 20);
+        container.setDefaultMaxBinaryMessageBufferSize(1 << 20);
+        StandardWebSocketClient client = new StandardWebSocketClient(container);
+        WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
+        headers.setSecWebSocketProtocol(protocol);
+        ClientHandler handler = new ClientHandler();
+        long start = System.currentTimeMillis();
+        int batch = 100;
+        for (int i = 0; i < clients; i += batch) {
+            List<Future<WebSocketSession>> futures = new ArrayList<>(batch);
+            for (int j = i; j < Math.min(clients, i + batch); j++) {
+                futures.add(client.doHandshake(handler, headers, uri));
+            }
+            for (Future<WebSocketSession> future : futures) {
+                sessions.add(future.get(30, TimeUnit.SECONDS));
+            }
+        }
+        logger.info("{} clients connected to {} in {} ms.", clients, uri, System.currentTimeMillis() - start);
+    }
+
+    void run(int senders, int rate, int warmup, int duration) throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        AtomicLong counter = new AtomicLong();
+        scheduler.scheduleAtFixedRate(() -> {
+            WebSocketSession session = sessions.get((int) (counter.getAndIncrement() % senders));
+            try {
+                if (session.isOpen()) {
+                    session.sendMessage(encode(PREFIX + System.nanoTime()));
+                    if (recording) {
+                        sent.increment();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("send failed: {}", e.getMessage());
+            }
+        }, 0, 1_000_000_000L / Math.max(1, rate), TimeUnit.NANOSECONDS);
+
+        logger.info("warming up for {} s...", warmup);
+        Thread.sleep(warmup * 1000L);
+
+        GcSnapshot gcBefore = GcSnapshot.take();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        latency.reset();
+        sent.reset();
+        received.reset();
+        recording = true;
+        long start = System.nanoTime();
+        logger.info("measuring for {} s...", duration);
+        Thread.sleep(duration * 1000L);
+        recording = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        GcSnapshot gcAfter = GcSnapshot.take();
+        scheduler.shutdownNow();
+
+        report(seconds, gcBefore, gcAfter);
+    }
+
+    void disconnect() {
+        synchronized (sessions) {
+            for (WebSocketSession session : sessions) {
+                try {
+                    session.close();
+                } catch (IOException | RuntimeException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void report(double seconds, GcSnapshot gcBefore, GcSnapshot gcAfter) {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        long sentCount = sent.sum();
+        long receivedCount = received.sum();
+        long expected = sentCount * (sessions.size() - closed.get());
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%n---- chat benchmark: %d clients, %s, %.1f s ----%n", sessions.size(), protocol, seconds));
+        sb.append(String.format("sent:        %d msg, %.1f msg/s%n", sentCount, sentCount / seconds));
+        sb.append(String.format("delivered:   %d msg, %.1f msg/s, %.2f%% of expected%n", receivedCount, receivedCount / seconds,
+                expected == 0 ? 0.0 : receivedCount * 100.0 / expected));
+        sb.append(String.format("latency ms:  p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                latency.percentile(50), latency.percentile(90), latency.percentile(99), latency.percentile(99.9), latency.max()));
+        sb.append(String.format("closed:      %d clients%n", closed.get()));
+        sb.append(String.format("heap:        used=%d MB, peak=%d MB%n",
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20, peakHeap >> 20));
+        sb.append(String.format("gc:          %d collections, %d ms%n", gcAfter.count - gcBefore.count, gcAfter.time - gcBefore.time));
+        logger.info(sb.toString());
+    }
+
+    private WebSocketMessage<?> encode(String text) throws IOException {
+        byte[] data = mapper.writeValueAsBytes(Collections.singletonMap("text", text));
+        return mapper.getFactory() instanceof CBORFactory ? new BinaryMessage(data) : new TextMessage(data);
+    }
+
+    private void onFrame(JsonNode node) {
+        long now = System.nanoTime();
+        // 广播是消息数组，分页回复是对象，这里只关心广播:
+        if (!node.isArray()) {
+            return;
+        }
+        for (JsonNode message : node) {
+            String text = message.path("text").asText("");
+            if (text.startsWith(PREFIX) && recording) {
+                received.increment();
+                latency.record(now - Long.parseLong(text.substring(PREFIX.length())));
+            }
+        }
+    }
+
+    private class ClientHandler extends AbstractWebSocketHandler {
+
+        @Override
+        protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+            onFrame(mapper.readTree(message.asBytes()));
+        }
+
+        @Override
+        protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+            ByteBuffer payload = message.getPayload();
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            onFrame(mapper.readTree(data));
+        }
+
+        @Override
+        public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+            closed.incrementAndGet();
+            logger.debug("client {} closed: {}", session.getId(), status);
+        }
+    }
+
+    /**
+     * 固定精度的延迟直方图，每个桶100微秒，最大60秒，超出的计入最后一个桶
+     */
+    static final class Histogram {
+
+        static final long BUCKET_NANOS = 100_000;
+        static final int BUCKETS = 600_000;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet((int) Math.min(BUCKETS - 1, Math.max(0, nanos / BUCKET_NANOS)));
+            count.incrementAndGet();
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            max.set(0);
+        }
+
+        /**
+         * @return 百分位数(毫秒)，取所在桶的上界
+         */
+        double percentile(double p) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * p / 100);
+            long sum = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                sum += buckets.get(i);
+                if (sum >= target) {
+                    return (i + 1) * BUCKET_NANOS / 1e6;
+                }
+            }
+            return max();
+        }
+
+        double max() {
+            return max.get() / 1e6;
+        }
+    }
+
+    static final class GcSnapshot {
+
+        long count;
+        long time;
+
+        static GcSnapshot take() {
+            GcSnapshot snapshot = new GcSnapshot();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                snapshot.count += Math.max(0, gc.getCollectionCount());
+                snapshot.time += Math.max(0, gc.getCollectionTime());
+            }
+            return snapshot;
+        }
+    }
+}
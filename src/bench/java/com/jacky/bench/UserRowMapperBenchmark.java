@@ -0,0 +1,104 @@
+package com.jacky.bench;
+
+import com.jacky.entity.User;
+import com.jacky.service.UserRowMapper;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author jacky
+ * @time 2021-01-30 16:05
+ * @discription 比较UserRowMapper和BeanPropertyRowMapper读取整张users表的速度
+ *              使用内存中的HSQLDB，表结构与DatabaseInitializer相同，每个rows参数各建一张表。
+ *              结果中的rows一项是每秒映射的行数。
+ *
+ *              运行：mvn -Pbench compile exec:exec@jmh -Djmh.args=UserRowMapperBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class UserRowMapperBenchmark {
+
+    static final String SQL = "SELECT * FROM users";
+
+    @Param({ "10000", "100000", "1000000" })
+    int rows;
+
+    SingleConnectionDataSource dataSource;
+    JdbcTemplate jdbcTemplate;
+    BeanPropertyRowMapper<User> beanPropertyRowMapper = new BeanPropertyRowMapper<>(User.class);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dataSource = new SingleConnectionDataSource("jdbc:hsqldb:mem:bench" + rows, "sa", "", true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("CREATE TABLE users (" //
+                + "id BIGINT IDENTITY NOT NULL PRIMARY KEY, " //
+                + "email VARCHAR(100) NOT NULL, " //
+                + "password VARCHAR(100) NOT NULL, " //
+                + "name VARCHAR(100) NOT NULL, " //
+                + "createdAt BIGINT NOT NULL, " //
+                + "UNIQUE (email))");
+        List<Object[]> batch = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < rows; i++) {
+            batch.add(new Object[] { "user" + i + "@example.com", "password" + i, "User " + i, now + i });
+            if (batch.size() == 10000 || i == rows - 1) {
+                jdbcTemplate.batchUpdate("INSERT INTO users(email,password,name,createdAt) VALUES(?,?,?,?)", batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        jdbcTemplate.execute("SHUTDOWN");
+        dataSource.destroy();
+    }
+
+    /**
+     * 每次调用映射的行数，JMH会把它换算为每秒的行数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class RowCounter {
+        public long rows;
+    }
+
+    @Benchmark
+    public void beanPropertyRowMapper(RowCounter counter, Blackhole blackhole) {
+        List<User> users = jdbcTemplate.query(SQL, beanPropertyRowMapper);
+        counter.rows += users.size();
+        blackhole.consume(users);
+    }
+
+    @Benchmark
+    public void userRowMapper(RowCounter counter, Blackhole blackhole) {
+        List<User> users = jdbcTemplate.query(SQL, new UserRowMapper());
+        counter.rows += users.size();
+        blackhole.consume(users);
+    }
+}
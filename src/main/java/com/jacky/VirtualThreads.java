@@ -0,0 +1,81 @@
+package com.jacky;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author jacky
+ * @time 2021-02-06 20:10
+ * @discription 虚拟线程模式的开关
+ *              启动时加上-Dthreads.virtual=true，Tomcat的请求线程、定时任务、聊天室发送、异步查询和JMS监听器都改用虚拟线程：
+ *              阻塞在数据库、网络或sleep上的虚拟线程不占用操作系统线程，同时阻塞的任务数不再受线程数限制。
+ *              虚拟线程需要JDK 21以上，而项目按Java 8编译，因此通过反射调用Thread.ofVirtual()等新API；
+ *              打开开关但运行在旧JDK上时启动失败，而不是悄悄退回平台线程。
+ *              开关只能用系统属性设置，因为Tomcat在Spring容器读取.properties之前就已经创建。
+ */
+public final class VirtualThreads {
+
+    public static final String PROPERTY = "threads.virtual";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return 是否打开了虚拟线程模式
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * @return 当前JDK是否支持虚拟线程
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 创建虚拟线程的ThreadFactory，线程名为prefix加序号
+     * @param prefix
+     * @return
+     */
+    public static ThreadFactory factory(String prefix) {
+        checkSupported();
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("create virtual thread factory failed", e);
+        }
+    }
+
+    /**
+     * 创建每个任务一个虚拟线程的ExecutorService，没有线程数和队列的限制
+     * @param prefix
+     * @return
+     */
+    public static ExecutorService newExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("create virtual thread executor failed", e);
+        }
+    }
+
+    private static void checkSupported() {
+        if (!isSupported()) {
+            throw new IllegalStateException("-D" + PROPERTY + "=true requires JDK 21 or later, current JDK is "
+                    + System.getProperty("java.version"));
+        }
+    }
+}
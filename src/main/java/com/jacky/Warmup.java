@@ -0,0 +1,269 @@
+package com.jacky;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jacky.entity.User;
+import com.jacky.jdbc.ReadWriteRoutingDataSource;
+import com.jacky.webSocket.ChatCodec;
+import com.jacky.webSocket.ChatMessage;
+import com.mitchellbosecke.pebble.PebbleEngine;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.ServletContext;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author jacky
+ * @time 2021-02-07 16:20
+ * @discription 启动预热
+ *              Tomcat启动后的第一批请求要承担创建数据库连接、解析模板、构造Jackson序列化器、
+ *              Spring MVC内部缓存的初始化以及JIT编译的开销，每次发布后的p99都很差。
+ *              WebConfig.main()在打开对外端口之前调用run()，依次执行：
+ *                  1）pool：从每个连接池借出连接直到填满，再全部归还；
+ *                  2）templates：编译/WEB-INF/templates/下的所有模板，放入Pebble的缓存；
+ *                  3）json：用ObjectMapper和聊天室的编解码序列化、反序列化User和ChatMessage；
+ *                  4）requests：通过只监听127.0.0.1的临时连接器反复发送warmup.requests中的请求，
+ *                     请求经过Tomcat和DispatcherServlet的完整处理，直到相邻几轮的平均耗时稳定下来。
+ *              每个阶段的耗时写入日志。预热失败只记录警告，不会阻止启动。
+ */
+@Component
+public class Warmup {
+
+    static final String TEMPLATE_DIR = "/WEB-INF/templates/";
+
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    PebbleEngine pebbleEngine;
+
+    @Autowired
+    ServletContext servletContext;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    ChatCodec chatCodec;
+
+    @Value("${warmup.enabled:true}")
+    boolean enabled;
+
+    @Value("${warmup.timeout:60000}")
+    long timeout;
+
+    @Value("${warmup.pool.connections:0}")
+    int poolConnections;
+
+    @Value("${pebble.cache:true}")
+    boolean templateCache;
+
+    @Value("${warmup.requests:/}")
+    String[] requests;
+
+    @Value("${warmup.requests.perRound:50}")
+    int requestsPerRound;
+
+    @Value("${warmup.requests.maxRounds:40}")
+    int maxRounds;
+
+    @Value("${warmup.requests.tolerance:0.1}")
+    double tolerance;
+
+    @Value("${warmup.requests.stableRounds:3}")
+    int stableRounds;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 执行预热
+     * @param baseUrl 预热请求发往的地址，例如http://127.0.0.1:8080，为null时跳过requests阶段
+     */
+    public void run(String baseUrl) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        phase("pool", this::fillPools);
+        phase("templates", this::compileTemplates);
+        phase("json", this::primeObjectMapper);
+        if (baseUrl != null) {
+            phase("requests", () -> replayRequests(baseUrl, deadline));
+        } else {
+            logger.warn("warm-up phase requests skipped: start local connector failed.");
+        }
+        logger.info("warm-up finished in {} ms.", System.currentTimeMillis() - start);
+    }
+
+    private void phase(String name, Phase phase) {
+        long start = System.currentTimeMillis();
+        try {
+            String result = phase.run();
+            logger.info("warm-up phase {} finished in {} ms: {}", name, System.currentTimeMillis() - start, result);
+        } catch (Exception e) {
+            logger.warn("warm-up phase " + name + " failed after " + (System.currentTimeMillis() - start) + " ms.", e);
+        }
+    }
+
+    private String fillPools() throws SQLException {
+        if (dataSource.isWrapperFor(ReadWriteRoutingDataSource.class)) {
+            ReadWriteRoutingDataSource routing = dataSource.unwrap(ReadWriteRoutingDataSource.class);
+            return fillPool(routing.getPrimary().unwrap(HikariDataSource.class)) + ", "
+                    + fillPool(routing.getReplica().unwrap(HikariDataSource.class));
+        }
+        return fillPool(dataSource.unwrap(HikariDataSource.class));
+    }
+
+    /**
+     * 同时借出target个连接，连接池只能新建连接，归还后这些连接留在池中
+     */
+    private String fillPool(HikariDataSource pool) throws SQLException {
+        int target = poolConnections > 0 ? Math.min(poolConnections, pool.getMaximumPoolSize()) : pool.getMaximumPoolSize();
+        List<Connection> connections = new ArrayList<>(target);
+        try {
+            while (connections.size() < target) {
+                connections.add(pool.getConnection());
+            }
+        } catch (SQLException e) {
+            logger.warn("fill pool {} stopped at {} connections: {}", pool.getPoolName(), connections.size(), e.getMessage());
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        return pool.getPoolName() + " " + connections.size() + "/" + target + " connections";
+    }
+
+    private String compileTemplates() {
+        if (!templateCache) {
+            return "skipped, pebble.cache=false";
+        }
+        List<String> templates = new ArrayList<>();
+        findTemplates(TEMPLATE_DIR, templates);
+        for (String template : templates) {
+            // PebbleViewResolver把prefix设置到了Loader上，缓存中的模板名是相对于prefix的视图名:
+            pebbleEngine.getTemplate(template.substring(TEMPLATE_DIR.length()));
+        }
+        return templates.size() + " templates";
+    }
+
+    private void findTemplates(String dir, List<String> templates) {
+        Set<String> paths = servletContext.getResourcePaths(dir);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            if (path.endsWith("/")) {
+                findTemplates(path, templates);
+            } else {
+                templates.add(path);
+            }
+        }
+    }
+
+    private String primeObjectMapper() throws IOException {
+        User user = new User();
+        user.setId(0L);
+        user.setEmail("warmup@example.com");
+        user.setPassword("warmup");
+        user.setName("warmup");
+        user.setCreatedAt(System.currentTimeMillis());
+        objectMapper.readerFor(User.class).readValue(objectMapper.writerFor(User.class).writeValueAsBytes(user));
+        ChatMessage message = new ChatMessage("warmup", "warmup");
+        objectMapper.readerFor(ChatMessage.class).readValue(objectMapper.writerFor(ChatMessage.class).writeValueAsBytes(message));
+        chatCodec.warmUp(message);
+        return "User, ChatMessage";
+    }
+
+    /**
+     * 每轮按顺序循环发送requestsPerRound个请求，计算平均耗时，
+     * 连续stableRounds轮与上一轮相比的变化都不超过tolerance时结束，最多maxRounds轮。
+     */
+    private String replayRequests(String baseUrl, long deadline) throws IOException {
+        RequestClient client = new RequestClient(baseUrl);
+        double first = 0;
+        double previous = 0;
+        int rounds = 0;
+        int stable = 0;
+        while (rounds < maxRounds && stable < stableRounds && System.currentTimeMillis() < deadline) {
+            long start = System.nanoTime();
+            for (int i = 0; i < requestsPerRound; i++) {
+                client.get(requests[i % requests.length]);
+            }
+            double average = (System.nanoTime() - start) / 1_000_000.0 / requestsPerRound;
+            rounds++;
+            logger.debug("warm-up round {}: {} ms per request.", rounds, String.format("%.3f", average));
+            if (rounds == 1) {
+                first = average;
+            } else if (Math.abs(average - previous) <= previous * tolerance) {
+                stable++;
+            } else {
+                stable = 0;
+            }
+            previous = average;
+        }
+        return String.format("%d rounds, %d requests, %d errors, %.3f ms per request in the first round, %.3f ms in the last, %s",
+                rounds, client.count, client.errors, first, previous, stable >= stableRounds ? "stable" : "not stable");
+    }
+
+    @FunctionalInterface
+    interface Phase {
+        String run() throws Exception;
+    }
+
+    /**
+     * 发送预热请求，保留服务器返回的Cookie，所有请求共用一个会话，不会在服务器上留下大量会话
+     */
+    static class RequestClient {
+        final String baseUrl;
+        String cookie;
+        int count;
+        int errors;
+
+        RequestClient(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        void get(String path) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(10000);
+            if (cookie != null) {
+                conn.setRequestProperty("Cookie", cookie);
+            }
+            int status = conn.getResponseCode();
+            String setCookie = conn.getHeaderField("Set-Cookie");
+            if (setCookie != null) {
+                cookie = setCookie.split(";", 2)[0];
+            }
+            // 读完并关闭响应，连接才能被复用:
+            try (InputStream input = status >= 400 ? conn.getErrorStream() : conn.getInputStream()) {
+                if (input != null) {
+                    byte[] buffer = new byte[8192];
+                    while (input.read(buffer) >= 0) {
+                    }
+                }
+            }
+            count++;
+            if (status >= 500) {
+                errors++;
+            }
+        }
+    }
+}
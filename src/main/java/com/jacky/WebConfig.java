@@ -2,7 +2,16 @@ package com.jacky;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jacky.jdbc.InstrumentedDataSource;
+import com.jacky.jdbc.PoolMetrics;
+import com.jacky.jdbc.ReadWriteRoutingDataSource;
+import com.jacky.jdbc.ReadWriteTransactionManager;
+import com.jacky.jdbc.SqlMetrics;
+import com.jacky.service.PasswordHasher;
+import com.jacky.service.Pbkdf2PasswordHasher;
+import com.jacky.service.PlainPasswordHasher;
 import com.jacky.webSocket.ChatHandler;
+import com.jacky.webSocket.ChatHandshakeHandler;
 import com.jacky.webSocket.ChatHandshakeInterceptor;
 import com.mitchellbosecke.pebble.PebbleEngine;
 import com.mitchellbosecke.pebble.extension.AbstractExtension;
@@ -17,10 +26,15 @@ import com.zaxxer.hikari.HikariDataSource;
 
 import org.apache.activemq.artemis.jms.client.ActiveMQJMSConnectionFactory;
 import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Service;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.loader.WebappLoader;
 import org.apache.catalina.WebResourceRoot;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.webresources.DirResourceSet;
 import org.apache.catalina.webresources.StandardRoot;
+import org.apache.coyote.AbstractProtocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,16 +43,21 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.MessageSource;
 import org.springframework.context.annotation.*;
 import org.springframework.context.support.ResourceBundleMessageSource;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jms.annotation.EnableJms;
 import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
+import org.springframework.jms.connection.CachingConnectionFactory;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
 import org.springframework.web.servlet.HandlerInterceptor;
 import org.springframework.web.servlet.LocaleResolver;
 import org.springframework.web.servlet.ViewResolver;
@@ -47,6 +66,7 @@ import org.springframework.web.servlet.i18n.CookieLocaleResolver;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
 import javax.jms.ConnectionFactory;
 import javax.servlet.ServletContext;
@@ -65,28 +85,96 @@ import java.util.*;
  */
 @Configuration
 @ComponentScan
-//@EnableWebSocket
+@EnableWebSocket
 @EnableJms //Java Message Service
 @EnableWebMvc  //启用Spring MVC
 @EnableScheduling //启用Scheduler
 @EnableMBeanExport  //自动注册MBean(Managed Bean):for JMX(Java Management Extensions)
 @EnableTransactionManagement
-@PropertySource({"classpath:/jdbc.properties", "classpath:/smtp.properties", "classpath:/jms.properties"})
+@PropertySource({"classpath:/jdbc.properties", "classpath:/smtp.properties", "classpath:/jms.properties", "classpath:/chat.properties", "classpath:/auth.properties",
+        "classpath:/warmup.properties"})
 public class WebConfig {
 
     final Logger logger = LoggerFactory.getLogger(getClass());
 
     public static void main(String[] args) throws Exception{
+        Tomcat tomcat = createTomcat(Integer.getInteger("port", 8080));
+        // 不调用tomcat.start()，它会为没有连接器的Service再创建一个默认连接器。
+        // 先取下对外的连接器启动应用，预热完成后再加回去，此时才开始监听端口:
+        Service service = tomcat.getService();
+        Connector connector = service.findConnectors()[0];
+        service.removeConnector(connector);
+        tomcat.getServer().start();
+        warmup(tomcat);
+        service.addConnector(connector);
+        if (!connector.getState().isAvailable()) {
+            throw new IllegalStateException("start connector on port " + connector.getPort() + " failed");
+        }
+        tomcat.getServer().await();
+    }
+
+    /**
+     * 通过只监听127.0.0.1的临时连接器执行预热，预热请求经过和正式请求相同的Tomcat和DispatcherServlet，
+     * 结束后关闭该连接器。应用没有启动成功或warmup.enabled=false时什么也不做。
+     * @param tomcat 已启动、但还没有对外连接器的Tomcat
+     */
+    static void warmup(Tomcat tomcat) throws LifecycleException {
+        Context ctx = (Context) tomcat.getHost().findChild("");
+        WebApplicationContext context = WebApplicationContextUtils.findWebApplicationContext(ctx.getServletContext());
+        if (context == null) {
+            return;
+        }
+        Warmup warmup = context.getBean(Warmup.class);
+        if (!warmup.isEnabled()) {
+            return;
+        }
+        Connector local = createConnector(0);
+        local.setProperty("address", "127.0.0.1");
+        Service service = tomcat.getService();
+        service.addConnector(local);
+        try {
+            warmup.run(local.getState().isAvailable() ? "http://127.0.0.1:" + local.getLocalPort() : null);
+        } finally {
+            service.removeConnector(local);
+            local.destroy();
+        }
+    }
+
+    /**
+     * 创建嵌入式Tomcat并加载当前Web应用，调用者负责start()，
+     * 压测工具ChatBenchmark也通过它在进程内启动应用
+     * @param port 端口，0表示随机端口
+     * @return 尚未启动的Tomcat
+     */
+    public static Tomcat createTomcat(int port) {
         Tomcat tomcat = new Tomcat();
-        tomcat.setPort(Integer.getInteger("port", 8080));
-        tomcat.getConnector();
+        tomcat.setConnector(createConnector(port));
         Context ctx = tomcat.addWebapp("", new File("src/main/webapp").getAbsolutePath());
         WebResourceRoot resources = new StandardRoot(ctx);
         resources.addPreResources(
                 new DirResourceSet(resources, "/WEB-INF/classes", new File("target/classes").getAbsolutePath(), "/"));
         ctx.setResources(resources);
-        tomcat.start();
-        tomcat.getServer().await();
+        // target/classes同时在启动类的classpath上，优先由父ClassLoader加载，
+        // main()和Web应用看到的是同一份类，才能从IoC容器中取出Warmup:
+        WebappLoader loader = new WebappLoader(WebConfig.class.getClassLoader());
+        loader.setDelegate(true);
+        ctx.setLoader(loader);
+        return tomcat;
+    }
+
+    /**
+     * 创建HTTP连接器，虚拟线程模式下请求在虚拟线程中处理
+     * @param port 端口，0表示随机端口
+     * @return
+     */
+    static Connector createConnector(int port) {
+        Connector connector = new Connector("HTTP/1.1");
+        connector.setPort(port);
+        if (VirtualThreads.isEnabled()) {
+            // 每个请求一个虚拟线程，maxThreads不再起作用，接收连接和轮询的线程仍是平台线程:
+            ((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(VirtualThreads.newExecutor("http-vt-"));
+        }
+        return connector;
     }
 
     // -- Mvc configuration ---------------------------------------------------
@@ -140,22 +228,101 @@ public class WebConfig {
      * 加入Spring WEB对WebSocket的配置：
      * 此实例在内部通过WebSocketHandlerRegistry注册能处理WebSocket的WebSocketHandler，
      * 以及可选的WebSocket拦截器HandshakeInterceptor
+     * ChatHandshakeHandler负责协商子协议和压缩扩展。
      * @param chatHandler
      * @param chatInterceptor
+     * @param chatHandshakeHandler
      * @return
      */
     @Bean
     WebSocketConfigurer createWebSocketConfigurer(@Autowired ChatHandler chatHandler,
-                                                  @Autowired ChatHandshakeInterceptor chatInterceptor) {
+                                                  @Autowired ChatHandshakeInterceptor chatInterceptor,
+                                                  @Autowired ChatHandshakeHandler chatHandshakeHandler) {
         return new WebSocketConfigurer() {
             @Override
             public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
                 // 把URL与指定的WebSocketHandler关联，可关联多个:
-                registry.addHandler(chatHandler, "/chat").addInterceptors(chatInterceptor);
+                // /chat进入默认聊天室，/chat/{room}进入指定聊天室
+                registry.addHandler(chatHandler, "/chat", "/chat/*")
+                        .setHandshakeHandler(chatHandshakeHandler)
+                        .addInterceptors(chatInterceptor);
             }
         };
     }
 
+    /**
+     * 配置Tomcat的WebSocket容器：
+     * 文本和二进制消息的缓冲区都设置为chat.inbound.maxFrameLength，超过缓冲区的消息由Tomcat直接以1009关闭连接，
+     * 不会为超长的消息分配更大的缓冲区；不超过的消息再由ChatHandler按UTF-8字节数检查。
+     * @param maxFrameLength
+     * @return
+     */
+    @Bean
+    ServletServerContainerFactoryBean createWebSocketContainer(@Value("${chat.inbound.maxFrameLength:4096}") int maxFrameLength) {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(maxFrameLength);
+        container.setMaxBinaryMessageBufferSize(maxFrameLength);
+        return container;
+    }
+
+    /**
+     * 聊天室发送消息使用的共享线程池。
+     * 每个WebSocket会话有自己的发送队列，同一会话同一时刻最多占用一个线程，
+     * 因此线程数决定了能同时向多少个客户端写数据，慢客户端不会影响其他客户端。
+     * 排队的任务数也有上限，线程池跟不上时新的发送任务被拒绝，对应的会话被关闭，而不是无限积压。
+     * @param poolSize
+     * @param queueCapacity
+     * @return
+     */
+    @Bean("chatSendExecutor")
+    ThreadPoolTaskExecutor createChatSendExecutor(@Value("${chat.send.poolSize:16}") int poolSize,
+                                                  @Value("${chat.send.queueCapacity:10000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("chat-send-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        if (VirtualThreads.isEnabled()) {
+            executor.setThreadFactory(VirtualThreads.factory("chat-send-vt-"));
+        }
+        return executor;
+    }
+
+    /**
+     * @Scheduled定时任务使用的线程池，例如聊天日志刷盘、只读库延迟检查、心跳和空闲聊天室清理。
+     * 有多个TaskScheduler时，@EnableScheduling使用名为taskScheduler的这个。
+     * 刷盘的force()可能很慢，因此与chatTaskScheduler分开，不会推迟合并窗口的发送。
+     * @param poolSize
+     * @return
+     */
+    @Bean("taskScheduler")
+    ThreadPoolTaskScheduler createTaskScheduler(@Value("${task.scheduler.poolSize:2}") int poolSize) {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(poolSize);
+        scheduler.setThreadNamePrefix("task-scheduler-");
+        if (VirtualThreads.isEnabled()) {
+            scheduler.setThreadFactory(VirtualThreads.factory("task-scheduler-vt-"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * 聊天室合并模式下按时间窗口发送消息，只执行很短的任务，
+     * @Scheduled定时任务使用单独的taskScheduler，窗口到期时不会排在阻塞的任务后面。
+     * @return
+     */
+    @Bean("chatTaskScheduler")
+    ThreadPoolTaskScheduler createChatTaskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(2);
+        scheduler.setThreadNamePrefix("chat-scheduler-");
+        if (VirtualThreads.isEnabled()) {
+            scheduler.setThreadFactory(VirtualThreads.factory("chat-scheduler-vt-"));
+        }
+        return scheduler;
+    }
+
     @Bean
     ObjectMapper createObjectMapper() {
         ObjectMapper om = new ObjectMapper();
@@ -202,19 +369,19 @@ public class WebConfig {
     // -- pebble view configuration -------------------------------------------
 
     /**
-     * 另一个必须要创建的Bean是ViewResolver，因为Spring MVC允许集成任何模板引擎，使用哪个模板引擎，就实例化一个对应的ViewResolver
-     * ViewResolver通过指定prefix和suffix来确定如何查找View。
-     * 下述配置使用Pebble引擎，指定模板文件存放在/WEB-INF/tempaltes/目录下。
+     * Pebble引擎单独注册为Bean，启动预热时用它预先编译所有模板。
+     * pebble.cache=false时每次渲染都重新解析模板，修改模板后无需重启，适合开发时使用。
      * @param servletContext servletContext
-     * @return ViewResolver
+     * @return PebbleEngine
      */
-    @Bean
-    ViewResolver createViewResolver(@Autowired ServletContext servletContext, @Autowired @Qualifier("i18n") MessageSource messageSource) {
-        PebbleEngine engine = new PebbleEngine.Builder().autoEscaping(true)
+    @Bean("pebbleEngine")
+    PebbleEngine createPebbleEngine(@Autowired ServletContext servletContext, @Autowired @Qualifier("i18n") MessageSource messageSource,
+                                    @Value("${pebble.cache:true}") boolean cacheActive) {
+        return new PebbleEngine.Builder().autoEscaping(true)
                 //设置是否自动执行转义。
                 .autoEscaping(true)
                 // cache:
-                .cacheActive(false)
+                .cacheActive(cacheActive)
                 // loader:
                 .loader(new ServletLoader(servletContext))
                 // extension:(添加国际化函数扩展)
@@ -222,10 +389,20 @@ public class WebConfig {
                 //.extension(new SpringExtension())
                 // build:
                 .build();
-        PebbleViewResolver viewResolver = new PebbleViewResolver();
+    }
+
+    /**
+     * 另一个必须要创建的Bean是ViewResolver，因为Spring MVC允许集成任何模板引擎，使用哪个模板引擎，就实例化一个对应的ViewResolver
+     * ViewResolver通过指定prefix和suffix来确定如何查找View。
+     * 下述配置使用Pebble引擎，指定模板文件存放在/WEB-INF/tempaltes/目录下。
+     * @param engine pebbleEngine
+     * @return ViewResolver
+     */
+    @Bean
+    ViewResolver createViewResolver(@Autowired PebbleEngine engine) {
+        PebbleViewResolver viewResolver = new PebbleViewResolver(engine);
         viewResolver.setPrefix("/WEB-INF/templates/");
         viewResolver.setSuffix("");
-        viewResolver.setPebbleEngine(engine);
         return viewResolver;
     }
 
@@ -277,16 +454,61 @@ public class WebConfig {
     @Value("${jdbc.password}")
     String jdbcPassword;
 
+    @Value("${jdbc.replica.url:}")
+    String jdbcReplicaUrl;
+
+    @Value("${jdbc.pool.maximumPoolSize:10}")
+    int poolMaximumPoolSize;
+
+    @Value("${jdbc.pool.minimumIdle:2}")
+    int poolMinimumIdle;
+
+    @Value("${jdbc.pool.connectionTimeout:5000}")
+    long poolConnectionTimeout;
+
+    @Value("${jdbc.pool.idleTimeout:60000}")
+    long poolIdleTimeout;
+
+    @Value("${jdbc.pool.maxLifetime:1800000}")
+    long poolMaxLifetime;
+
+    /**
+     * 连接池的大小和超时都从jdbc.properties读取，运行时可以通过ConnectionPoolMBean调整。
+     * 注意这些是Hikari自己的配置，不能用addDataSourceProperty()设置，那样只会传给JDBC驱动。
+     * 配置了jdbc.replica.url时，再为只读库创建一个连接池，由ReadWriteRoutingDataSource把只读事务路由到只读库。
+     * jdbc.metrics.enabled=true时用InstrumentedDataSource包装连接池，记录每条SQL的耗时和行数，
+     * 统计数据见SqlMetricsMBean和/metrics
+     * @return
+     */
     @Bean
-    DataSource createDataSource() {
+    DataSource createDataSource(@Autowired SqlMetrics sqlMetrics, @Autowired PoolMetrics poolMetrics,
+                                @Value("${jdbc.metrics.enabled:true}") boolean metricsEnabled) {
+        HikariConfig config = createPoolConfig("jdbcPool", jdbcUrl);
+        config.setMetricsTrackerFactory(poolMetrics);
+        DataSource dataSource = new HikariDataSource(config);
+        if (!jdbcReplicaUrl.isEmpty()) {
+            HikariConfig replicaConfig = createPoolConfig("jdbcReplicaPool", jdbcReplicaUrl);
+            replicaConfig.setReadOnly(true);
+            //只读库可能暂时不可用，不应阻止应用启动，ReplicaLagMonitor会在恢复后切回只读库
+            replicaConfig.setInitializationFailTimeout(-1);
+            dataSource = new ReadWriteRoutingDataSource(dataSource, new HikariDataSource(replicaConfig));
+        }
+        return metricsEnabled ? new InstrumentedDataSource(dataSource, sqlMetrics) : dataSource;
+    }
+
+    private HikariConfig createPoolConfig(String poolName, String url) {
         HikariConfig config = new HikariConfig();
-        config.setJdbcUrl(jdbcUrl);
+        config.setPoolName(poolName);
+        config.setJdbcUrl(url);
         config.setUsername(jdbcUsername);
         config.setPassword(jdbcPassword);
         config.addDataSourceProperty("autoCommit", "false");
-        config.addDataSourceProperty("connectionTimeout", "5");
-        config.addDataSourceProperty("idleTimeout", "60");
-        return new HikariDataSource(config);
+        config.setMaximumPoolSize(poolMaximumPoolSize);
+        config.setMinimumIdle(poolMinimumIdle);
+        config.setConnectionTimeout(poolConnectionTimeout);
+        config.setIdleTimeout(poolIdleTimeout);
+        config.setMaxLifetime(poolMaxLifetime);
+        return config;
     }
 
     @Bean
@@ -324,9 +546,80 @@ public class WebConfig {
         properties.put("mail.debug", debug);
         return mailSender;
     }
+    /**
+     * 密码哈希的实现，由password.hasher决定：
+     *      plain：明文，兼容已有数据；
+     *      pbkdf2：PBKDF2，password.pbkdf2.iterations控制计算代价，仍能校验切换前保存的明文密码。
+     * @param type
+     * @param iterations
+     * @return
+     */
+    @Bean
+    PasswordHasher createPasswordHasher(@Value("${password.hasher:plain}") String type,
+                                        @Value("${password.pbkdf2.iterations:100000}") int iterations) {
+        switch (type) {
+            case "plain":
+                return new PlainPasswordHasher();
+            case "pbkdf2":
+                return new Pbkdf2PasswordHasher(iterations);
+            default:
+                throw new IllegalArgumentException("unsupported password.hasher: " + type);
+        }
+    }
+
+    /**
+     * 登录时校验密码的线程池。
+     * 计算密码哈希很耗CPU，如果在Tomcat的请求线程中计算，登录高峰会占满所有请求线程；
+     * 放到固定大小的线程池中，同时计算的数量不超过poolSize，排队超过queueCapacity的请求直接拒绝。
+     * 虚拟线程模式下也使用平台线程，哈希计算不会阻塞，虚拟线程没有好处。
+     * @param poolSize 线程数，0表示CPU核数
+     * @param queueCapacity 排队数
+     * @return
+     */
+    @Bean("signinExecutor")
+    ThreadPoolTaskExecutor createSigninExecutor(@Value("${signin.poolSize:0}") int poolSize,
+                                                @Value("${signin.queueCapacity:100}") int queueCapacity) {
+        int size = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(size);
+        executor.setMaxPoolSize(size);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("signin-");
+        return executor;
+    }
+
+    /**
+     * ApiController异步查询使用的线程池。
+     * 数据库变慢时，查询占用的是这个线程池的线程，Tomcat的请求线程立即释放，不会因为等待数据库而耗尽；
+     * 排队超过queueCapacity的请求直接拒绝，由ApiController返回503。
+     * @param poolSize
+     * @param queueCapacity
+     * @return
+     */
+    @Bean("apiExecutor")
+    ThreadPoolTaskExecutor createApiExecutor(@Value("${api.executor.poolSize:16}") int poolSize,
+                                             @Value("${api.executor.queueCapacity:200}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("api-");
+        if (VirtualThreads.isEnabled()) {
+            // 线程数仍然限制同时进行的查询数，避免超过连接池大小太多:
+            executor.setThreadFactory(VirtualThreads.factory("api-vt-"));
+        }
+        return executor;
+    }
+
+    /**
+     * ReadWriteTransactionManager是DataSourceTransactionManager的子类，
+     * 在开始事务时把readOnly告诉ReadWriteRoutingDataSource，没有配置只读库时行为不变
+     * @param dataSource
+     * @return
+     */
     @Bean
     PlatformTransactionManager createTxManager(@Autowired DataSource dataSource) {
-        return new DataSourceTransactionManager(dataSource);
+        return new ReadWriteTransactionManager(dataSource);
     }
 
     // -- jms configuration ---------------------------------------------------
@@ -355,10 +648,30 @@ public class WebConfig {
      * @return
      */
     @Bean
+    //chatRelayJmsTemplate也是JmsTemplate，未指定名称的注入使用这个默认的
+    @Primary
     JmsTemplate createJmsTemplate(@Autowired ConnectionFactory connectionFactory) {
         return new JmsTemplate(connectionFactory);
     }
 
+    /**
+     * 聊天室集群转发使用的JmsTemplate，发送到Topic。
+     * 每条聊天消息都要发送，因此用CachingConnectionFactory包装，复用同一个连接、Session和Producer，
+     * 并以非持久化方式发送，Artemis对非持久化消息默认异步发送，不会阻塞广播。
+     * @param connectionFactory
+     * @return
+     */
+    @Bean("chatRelayJmsTemplate")
+    JmsTemplate createChatRelayJmsTemplate(@Autowired ConnectionFactory connectionFactory) {
+        CachingConnectionFactory cachingConnectionFactory = new CachingConnectionFactory(connectionFactory);
+        cachingConnectionFactory.setReconnectOnException(true);
+        JmsTemplate jmsTemplate = new JmsTemplate(cachingConnectionFactory);
+        jmsTemplate.setPubSubDomain(true);
+        jmsTemplate.setExplicitQosEnabled(true);
+        jmsTemplate.setDeliveryPersistent(false);
+        return jmsTemplate;
+    }
+
     /**
      * 除了必须指定Bean的名称为jmsListenerContainerFactory外，这个Bean的作用是处理和Consumer相关的Bean。
      * @param connectionFactory
@@ -369,6 +682,10 @@ public class WebConfig {
             @Autowired ConnectionFactory connectionFactory){
         DefaultJmsListenerContainerFactory factory = new DefaultJmsListenerContainerFactory();
         factory.setConnectionFactory(connectionFactory);
+        if (VirtualThreads.isEnabled()) {
+            // 每个消费者一个虚拟线程，可以把jms.mail.concurrency调大而不必担心线程开销:
+            factory.setTaskExecutor(new SimpleAsyncTaskExecutor(VirtualThreads.factory("jms-vt-")));
+        }
         return factory;
     }
 
@@ -1,7 +1,5 @@
 package com.jacky.entity;
 
-import org.omg.CORBA.PUBLIC_MEMBER;
-
 /**
  * @author jacky
  * @time 2021-01-17 21:37
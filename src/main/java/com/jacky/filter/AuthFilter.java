@@ -1,8 +1,6 @@
 package com.jacky.filter;
 
-import com.jacky.entity.User;
-import com.jacky.service.UserService;
-import com.jacky.web.UserController;
+import com.jacky.service.BasicAuthService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,10 +9,6 @@ import org.springframework.stereotype.Component;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 
 /**
  * @author jacky
@@ -45,35 +39,19 @@ public class AuthFilter implements Filter {
     final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
-    UserService userService;
+    BasicAuthService basicAuthService;
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         HttpServletRequest req = (HttpServletRequest) request;
         try {
-            authenticateByHeader(req);
+            basicAuthService.authenticate(req);
         } catch (RuntimeException e) {
             logger.warn("login by authorization header failed.", e);
         }
         chain.doFilter(request, response);
     }
 
-    private void authenticateByHeader(HttpServletRequest req) throws UnsupportedEncodingException {
-        String authHeader = req.getHeader("Authorization");
-        if (authHeader != null && authHeader.startsWith("Basic ")) {
-            logger.info("try authenticate by authorization header...");
-            String up = new String(Base64.getDecoder().decode(authHeader.substring(6)), StandardCharsets.UTF_8);
-            int pos = up.indexOf(':');
-            if (pos > 0) {
-                String email = URLDecoder.decode(up.substring(0, pos), String.valueOf(StandardCharsets.UTF_8));
-                String password = URLDecoder.decode(up.substring(pos + 1), String.valueOf(StandardCharsets.UTF_8));
-                User user = userService.signin(email, password);
-                req.getSession().setAttribute(UserController.KEY_USER, user);
-                logger.info("user {} login by authorization header ok.", email);
-            }
-        }
-    }
-
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
 
@@ -1,8 +1,6 @@
 package com.jacky.interceptor;
 
-import com.jacky.entity.User;
-import com.jacky.service.UserService;
-import com.jacky.web.UserController;
+import com.jacky.service.BasicAuthService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,10 +11,6 @@ import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 
 /**
  * @author jacky
@@ -31,34 +25,18 @@ public class AuthInterceptor implements HandlerInterceptor {
 
     final Logger logger = LoggerFactory.getLogger(getClass());
 
-    //这个AuthInterceptor是由Spring容器直接管理的，因此注入UserService非常方便。
+    //这个AuthInterceptor是由Spring容器直接管理的，因此注入BasicAuthService非常方便。
     @Autowired
-    UserService userService;
+    BasicAuthService basicAuthService;
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
         logger.info("pre authenticate {}...", request.getRequestURI());
         try {
-            authenticateByHeader(request);
+            basicAuthService.authenticate(request);
         } catch (RuntimeException e) {
             logger.warn("login by authorization header failed.", e);
         }
         return true;
     }
-
-    private void authenticateByHeader(HttpServletRequest req) throws UnsupportedEncodingException {
-        String authHeader = req.getHeader("Authorization");
-        if (authHeader != null && authHeader.startsWith("Basic ")) {
-            logger.info("try authenticate by authorization header...");
-            String up = new String(Base64.getDecoder().decode(authHeader.substring(6)), StandardCharsets.UTF_8);
-            int pos = up.indexOf(':');
-            if (pos > 0) {
-                String email = URLDecoder.decode(up.substring(0, pos), String.valueOf(StandardCharsets.UTF_8));
-                String password = URLDecoder.decode(up.substring(pos + 1), String.valueOf(StandardCharsets.UTF_8));
-                User user = userService.signin(email, password);
-                req.getSession().setAttribute(UserController.KEY_USER, user);
-                logger.info("user {} login by authorization header ok.", email);
-            }
-        }
-    }
 }
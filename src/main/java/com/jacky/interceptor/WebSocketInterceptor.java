@@ -1,8 +1,9 @@
 package com.jacky.interceptor;
 
-import com.jacky.web.UserController;
+import com.jacky.service.UserSessionService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
@@ -24,12 +25,15 @@ public class WebSocketInterceptor implements HandlerInterceptor {
 
     final Logger logger = LoggerFactory.getLogger(getClass());
 
+    @Autowired
+    UserSessionService userSessionService;
+
     @Override
     public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler,
                            ModelAndView modelAndView) throws Exception {
         logger.info("postHandle {}.", request.getRequestURI());
         if (modelAndView != null) {
-            modelAndView.addObject("user", request.getSession().getAttribute(UserController.KEY_USER));
+            modelAndView.addObject("user", userSessionService.getUser(request));
             modelAndView.addObject("__time__", LocalDateTime.now());
         }
     }
@@ -0,0 +1,49 @@
+package com.jacky.jdbc;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * @author jacky
+ * @time 2021-02-02 21:00
+ * @discription 记录每条SQL执行耗时和行数的DataSource
+ *              和HikariCP的ProxyConnection一样，用显式的委托类包装Connection、Statement和ResultSet，
+ *              不使用JDK动态代理，调用时没有反射、参数数组和装箱：
+ *                  executeXxx()的耗时记入SqlMetrics，executeUpdate()/executeBatch()的行数取返回值；
+ *                  查询的行数由InstrumentedResultSet在next()时计数，读完或close()时一次性记入；
+ *              PreparedStatement的SQL在prepareStatement()时就确定，对应的统计只查找一次。
+ *              每个Statement和ResultSet只多分配一个包装对象，记录本身不分配对象。
+ *              close()会关闭被包装的连接池，因此Bean销毁时连接池仍能正常关闭。
+ */
+public class InstrumentedDataSource extends DelegatingDataSource implements Closeable {
+
+    private final SqlMetrics metrics;
+
+    public InstrumentedDataSource(DataSource target, SqlMetrics metrics) {
+        super(target);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return new InstrumentedConnection(super.getConnection(), metrics);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return new InstrumentedConnection(super.getConnection(username, password), metrics);
+    }
+
+    @Override
+    public void close() throws IOException {
+        DataSource target = getTargetDataSource();
+        if (target instanceof Closeable) {
+            ((Closeable) target).close();
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.jacky.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * @author jacky
+ * @time 2021-02-02 21:00
+ * @discription InstrumentedConnection创建的Statement
+ *              executeXxx()的耗时记入SqlMetrics，executeUpdate()/executeBatch()的行数取返回值，
+ *              查询返回的ResultSet包装为InstrumentedResultSet，在next()时计数。
+ *              都是普通的方法调用，记录时不创建参数数组，也没有装箱。
+ */
+class InstrumentedStatement implements Statement {
+
+    private final Statement target;
+    //PreparedStatement的统计，普通Statement为null，执行时按传入的SQL查找
+    final StatementStats preparedStats;
+    final SqlMetrics metrics;
+    private final Connection connection;
+    //普通Statement最后一次addBatch()的SQL
+    private String batchSql;
+    //最后一次execute()的统计，getResultSet()返回的结果集按它计数
+    StatementStats lastStats;
+
+    InstrumentedStatement(Statement target, StatementStats preparedStats, SqlMetrics metrics, Connection connection) {
+        this.target = target;
+        this.preparedStats = preparedStats;
+        this.metrics = metrics;
+        this.connection = connection;
+    }
+
+    final StatementStats statsFor(String sql) {
+        if (preparedStats != null) {
+            return preparedStats;
+        }
+        return metrics.statsFor(sql == null ? SqlMetrics.OTHER : sql);
+    }
+
+    final ResultSet wrap(ResultSet resultSet, StatementStats stats) {
+        return resultSet == null ? null : new InstrumentedResultSet(resultSet, stats, this);
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            ResultSet resultSet = target.executeQuery(sql);
+            error = false;
+            return wrap(resultSet, stats);
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            int rows = target.executeUpdate(sql);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            int rows = target.executeUpdate(sql, autoGeneratedKeys);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            int rows = target.executeUpdate(sql, columnIndexes);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            int rows = target.executeUpdate(sql, columnNames);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            boolean result = target.execute(sql);
+            error = false;
+            this.lastStats = stats;
+            return result;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            boolean result = target.execute(sql, autoGeneratedKeys);
+            error = false;
+            this.lastStats = stats;
+            return result;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            boolean result = target.execute(sql, columnIndexes);
+            error = false;
+            this.lastStats = stats;
+            return result;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            boolean result = target.execute(sql, columnNames);
+            error = false;
+            this.lastStats = stats;
+            return result;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        StatementStats stats = statsFor(batchSql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            int[] rows = target.executeBatch();
+            error = false;
+            for (int n : rows) {
+                stats.addRows(n);
+            }
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        StatementStats stats = statsFor(batchSql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long[] rows = target.executeLargeBatch();
+            error = false;
+            for (long n : rows) {
+                stats.addRows(n);
+            }
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long rows = target.executeLargeUpdate(sql);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long rows = target.executeLargeUpdate(sql, autoGeneratedKeys);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long rows = target.executeLargeUpdate(sql, columnIndexes);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        StatementStats stats = statsFor(sql);
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long rows = target.executeLargeUpdate(sql, columnNames);
+            error = false;
+            stats.addRows(rows);
+            return rows;
+        } finally {
+            metrics.record(stats, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        target.addBatch(sql);
+        this.batchSql = sql;
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet resultSet = target.getResultSet();
+        return lastStats == null ? resultSet : wrap(resultSet, lastStats);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(target) ? iface.cast(target) : target.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(target) || target.isWrapperFor(iface);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        target.close();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return target.getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        target.setMaxFieldSize(max);
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return target.getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        target.setMaxRows(max);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        target.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return target.getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        target.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        target.cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return target.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        target.clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        target.setCursorName(name);
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return target.getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return target.getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        target.setFetchDirection(direction);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return target.getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        target.setFetchSize(rows);
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return target.getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return target.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return target.getResultSetType();
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        target.clearBatch();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return target.getMoreResults(current);
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return target.getGeneratedKeys();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return target.getResultSetHoldability();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return target.isClosed();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        target.setPoolable(poolable);
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return target.isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        target.closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return target.isCloseOnCompletion();
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return target.getLargeUpdateCount();
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        target.setLargeMaxRows(max);
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return target.getLargeMaxRows();
+    }
+}
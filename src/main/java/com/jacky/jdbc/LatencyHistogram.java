@@ -0,0 +1,118 @@
+package com.jacky.jdbc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-02-03 20:10
+ * @discription 耗时直方图
+ *              耗时按微秒记录在以2为底的对数桶中：第i个桶记录[2^(i-1), 2^i)微秒的次数，第0个桶记录不到1微秒的，
+ *              超过最后一个桶上限的都记在最后一个桶中。
+ *              record()只做计数器的原子自增，不分配对象，可以在生产环境中一直开启。
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 32;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        buckets.incrementAndGet(bucketOf(nanos));
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int i = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        return i < BUCKETS ? i : BUCKETS - 1;
+    }
+
+    /**
+     * @param i 桶序号
+     * @return 第i个桶的上限(微秒，不含)
+     */
+    public static long bucketUpperMicros(int i) {
+        return 1L << i;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getBucket(int i) {
+        return buckets.get(i);
+    }
+
+    /**
+     * @return 平均耗时(毫秒)
+     */
+    public double getAverageMillis() {
+        long n = getCount();
+        return n == 0 ? 0 : getTotalNanos() / 1e6 / n;
+    }
+
+    /**
+     * 按直方图估算百分位耗时，返回所在桶的上限，因此是偏大的估计
+     * @param p 0到1之间，例如0.99
+     * @return 微秒
+     */
+    public long percentileMicros(double p) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperMicros(i);
+            }
+        }
+        return bucketUpperMicros(BUCKETS - 1);
+    }
+
+    /**
+     * 以Prometheus文本格式输出直方图
+     * @param writer
+     * @param name 指标名，不含_bucket等后缀
+     * @param labels 标签，例如sql="..."，没有标签时传空字符串
+     * @throws IOException
+     */
+    public void writeText(Writer writer, String name, String labels) throws IOException {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += getBucket(i);
+            writer.write(name + "_bucket" + prefix + "le=\"" + bucketUpperMicros(i) / 1e6 + "\"} " + cumulative + "\n");
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        writer.write(name + "_bucket" + prefix + "le=\"+Inf\"} " + cumulative + "\n");
+        writer.write(name + "_count" + suffix + cumulative + "\n");
+        writer.write(name + "_sum" + suffix + getTotalNanos() / 1e9 + "\n");
+    }
+}
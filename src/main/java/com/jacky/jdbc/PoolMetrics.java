@@ -0,0 +1,103 @@
+package com.jacky.jdbc;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-02-03 20:30
+ * @discription Hikari连接池的统计
+ *              通过HikariConfig.setMetricsTrackerFactory()注册，Hikari在每次取得连接、归还连接和等待超时时回调：
+ *                  获取连接的等待时间和连接被占用的时间分别记入直方图，等待超时单独计数；
+ *              活跃、空闲和等待的数量由Hikari的PoolStats提供，每秒刷新一次。
+ *              等待时间的百分位持续升高、等待超时增加，说明连接池不够用，可以通过ConnectionPoolMBean调整大小。
+ */
+@Component
+public class PoolMetrics implements MetricsTrackerFactory {
+
+    private final LatencyHistogram acquire = new LatencyHistogram();
+    private final LatencyHistogram usage = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+
+    private volatile PoolStats poolStats;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquire.record(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usage.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+        };
+    }
+
+    /**
+     * @return 获取连接的等待时间
+     */
+    public LatencyHistogram getAcquire() {
+        return acquire;
+    }
+
+    /**
+     * @return 连接从取得到归还的占用时间
+     */
+    public LatencyHistogram getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return 等待超过connectionTimeout仍未取得连接的次数
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * 以Prometheus文本格式输出统计
+     * @param writer
+     * @throws IOException
+     */
+    public void writeText(Writer writer) throws IOException {
+        PoolStats stats = this.poolStats;
+        if (stats != null) {
+            writeGauge(writer, "jdbc_pool_active_connections", "Connections in use.", stats.getActiveConnections());
+            writeGauge(writer, "jdbc_pool_idle_connections", "Idle connections.", stats.getIdleConnections());
+            writeGauge(writer, "jdbc_pool_total_connections", "Open connections.", stats.getTotalConnections());
+            writeGauge(writer, "jdbc_pool_pending_threads", "Threads waiting for a connection.", stats.getPendingThreads());
+            writeGauge(writer, "jdbc_pool_max_connections", "Maximum pool size.", stats.getMaxConnections());
+        }
+        writer.write("# HELP jdbc_pool_acquire_seconds Time waiting to acquire a connection.\n");
+        writer.write("# TYPE jdbc_pool_acquire_seconds histogram\n");
+        acquire.writeText(writer, "jdbc_pool_acquire_seconds", "");
+        writer.write("# HELP jdbc_pool_usage_seconds Time a connection was borrowed.\n");
+        writer.write("# TYPE jdbc_pool_usage_seconds histogram\n");
+        usage.writeText(writer, "jdbc_pool_usage_seconds", "");
+        writer.write("# HELP jdbc_pool_timeouts_total Connection requests that timed out.\n");
+        writer.write("# TYPE jdbc_pool_timeouts_total counter\n");
+        writer.write("jdbc_pool_timeouts_total " + getTimeouts() + "\n");
+    }
+
+    private static void writeGauge(Writer writer, String name, String help, long value) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " gauge\n");
+        writer.write(name + " " + value + "\n");
+    }
+}
@@ -0,0 +1,108 @@
+package com.jacky.jdbc;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-02-04 20:10
+ * @discription 读写分离的DataSource
+ *              只读事务开始时从只读库(replica)取得连接，其余的事务和不在事务中的操作都使用主库(primary)。
+ *              AbstractRoutingDataSource在getConnection()时决定使用哪个库，而DataSourceTransactionManager在doBegin()中取得连接时，
+ *              事务的readOnly还没有写入TransactionSynchronizationManager，
+ *              因此由ReadWriteTransactionManager在doBegin()期间通过setCurrentReadOnly()告诉本类当前事务是否只读。
+ *              只读库复制延迟超过上限或不可用时，ReplicaLagMonitor会把replicaAvailable设为false，只读事务暂时改用主库。
+ */
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource implements Closeable {
+
+    static final String PRIMARY = "primary";
+    static final String REPLICA = "replica";
+
+    private static final ThreadLocal<Boolean> currentReadOnly = new ThreadLocal<>();
+
+    private final DataSource primary;
+    private final DataSource replica;
+
+    //启动时在第一次检查复制延迟之前不使用只读库
+    private volatile boolean replicaAvailable;
+
+    private final LongAdder replicaConnections = new LongAdder();
+    private final LongAdder fallbackConnections = new LongAdder();
+
+    public ReadWriteRoutingDataSource(DataSource primary, DataSource replica) {
+        this.primary = primary;
+        this.replica = replica;
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        targets.put(REPLICA, replica);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    static void setCurrentReadOnly(boolean readOnly) {
+        currentReadOnly.set(readOnly);
+    }
+
+    static void clearCurrentReadOnly() {
+        currentReadOnly.remove();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!Boolean.TRUE.equals(currentReadOnly.get())) {
+            return PRIMARY;
+        }
+        if (replicaAvailable) {
+            replicaConnections.increment();
+            return REPLICA;
+        }
+        fallbackConnections.increment();
+        return PRIMARY;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public DataSource getReplica() {
+        return replica;
+    }
+
+    public boolean isReplicaAvailable() {
+        return replicaAvailable;
+    }
+
+    public void setReplicaAvailable(boolean replicaAvailable) {
+        this.replicaAvailable = replicaAvailable;
+    }
+
+    /**
+     * @return 只读事务从只读库取得连接的次数
+     */
+    public long getReplicaConnections() {
+        return replicaConnections.sum();
+    }
+
+    /**
+     * @return 只读库不可用时只读事务改用主库的次数
+     */
+    public long getFallbackConnections() {
+        return fallbackConnections.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (DataSource dataSource : new DataSource[] { replica, primary }) {
+            if (dataSource instanceof Closeable) {
+                ((Closeable) dataSource).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.jacky.jdbc;
+
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+
+import javax.sql.DataSource;
+
+/**
+ * @author jacky
+ * @time 2021-02-04 20:30
+ * @discription 配合ReadWriteRoutingDataSource的事务管理器
+ *              doBegin()取得连接时，把事务是否只读告诉ReadWriteRoutingDataSource，
+ *              连接取得后就绑定到当前事务，事务中的后续操作不会再选择数据库。
+ *              没有配置只读库时，和DataSourceTransactionManager完全相同。
+ */
+public class ReadWriteTransactionManager extends DataSourceTransactionManager {
+
+    private static final long serialVersionUID = 1L;
+
+    public ReadWriteTransactionManager(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    @Override
+    protected void doBegin(Object transaction, TransactionDefinition definition) {
+        ReadWriteRoutingDataSource.setCurrentReadOnly(definition.isReadOnly());
+        try {
+            super.doBegin(transaction, definition);
+        } finally {
+            ReadWriteRoutingDataSource.clearCurrentReadOnly();
+        }
+    }
+}
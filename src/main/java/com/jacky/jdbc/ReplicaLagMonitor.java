@@ -0,0 +1,125 @@
+package com.jacky.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * @author jacky
+ * @time 2021-02-04 21:00
+ * @discription 只读库的复制延迟检查
+ *              每隔checkInterval毫秒在主库的replica_heartbeat表中写入当前时间，再从只读库读出来，
+ *              两者之差就是复制延迟(加上最多一个检查间隔)，不依赖具体数据库的复制状态查询。
+ *              延迟超过maxLag、只读库查询失败或还没有复制到心跳表时，只读事务改用主库，恢复后自动切回。
+ *              没有配置jdbc.replica.url时什么也不做。
+ */
+@Component
+public class ReplicaLagMonitor {
+
+    static final String CREATE_SQL = "CREATE TABLE IF NOT EXISTS replica_heartbeat (id INT NOT NULL PRIMARY KEY, ts BIGINT NOT NULL)";
+    static final String UPDATE_SQL = "UPDATE replica_heartbeat SET ts = ? WHERE id = 1";
+    static final String INSERT_SQL = "INSERT INTO replica_heartbeat (id, ts) VALUES (1, ?)";
+    static final String SELECT_SQL = "SELECT ts FROM replica_heartbeat WHERE id = 1";
+
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    DataSource dataSource;
+
+    //超过该延迟(毫秒)后只读事务改用主库，应大于检查间隔
+    @Value("${jdbc.replica.maxLag:5000}")
+    volatile long maxLag;
+
+    ReadWriteRoutingDataSource routing;
+    JdbcTemplate primaryTemplate;
+    JdbcTemplate replicaTemplate;
+
+    //最近一次测得的延迟(毫秒)，-1表示无法测量
+    private volatile long lag = -1;
+
+    @PostConstruct
+    public void init() throws SQLException {
+        if (!dataSource.isWrapperFor(ReadWriteRoutingDataSource.class)) {
+            return;
+        }
+        this.routing = dataSource.unwrap(ReadWriteRoutingDataSource.class);
+        this.primaryTemplate = new JdbcTemplate(routing.getPrimary());
+        this.replicaTemplate = new JdbcTemplate(routing.getReplica());
+        this.primaryTemplate.update(CREATE_SQL);
+        check();
+    }
+
+    @Scheduled(initialDelayString = "${jdbc.replica.checkInterval:1000}", fixedDelayString = "${jdbc.replica.checkInterval:1000}")
+    public void check() {
+        if (routing == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            if (primaryTemplate.update(UPDATE_SQL, now) == 0) {
+                primaryTemplate.update(INSERT_SQL, now);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("write replica heartbeat failed: {}", e.getMessage());
+        }
+        long measured;
+        try {
+            List<Long> ts = replicaTemplate.queryForList(SELECT_SQL, Long.class);
+            measured = ts.isEmpty() ? -1 : Math.max(0, System.currentTimeMillis() - ts.get(0));
+        } catch (RuntimeException e) {
+            logger.debug("read replica heartbeat failed: {}", e.getMessage());
+            measured = -1;
+        }
+        this.lag = measured;
+        boolean available = measured >= 0 && measured <= maxLag;
+        if (available != routing.isReplicaAvailable()) {
+            if (available) {
+                logger.info("replica lag {} ms, route read-only transactions to replica.", measured);
+            } else {
+                logger.warn("replica lag {} ms exceeds {} ms or replica unavailable, route read-only transactions to primary.",
+                        measured, maxLag);
+            }
+            routing.setReplicaAvailable(available);
+        }
+    }
+
+    /**
+     * @return 是否配置了只读库
+     */
+    public boolean isEnabled() {
+        return routing != null;
+    }
+
+    public boolean isReplicaAvailable() {
+        return routing != null && routing.isReplicaAvailable();
+    }
+
+    public long getLag() {
+        return lag;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    public void setMaxLag(long maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    public long getReplicaConnections() {
+        return routing == null ? 0 : routing.getReplicaConnections();
+    }
+
+    public long getFallbackConnections() {
+        return routing == null ? 0 : routing.getFallbackConnections();
+    }
+}
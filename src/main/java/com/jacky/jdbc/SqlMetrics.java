@@ -0,0 +1,206 @@
+package com.jacky.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * @author jacky
+ * @time 2021-02-02 20:30
+ * @discription 按规范化SQL汇总的执行统计，由InstrumentedDataSource记录
+ *              规范化：合并空白，把数字和字符串常量替换为?，把IN (?,?,...)合并为IN (?)，
+ *              这样只有参数不同的SQL会记在同一条统计下，例如UserImportService中长度不同的IN列表。
+ *              规范化需要创建字符串，因此原始SQL到统计的映射也被缓存，同一条PreparedStatement的SQL只规范化一次，
+ *              之后的记录只有一次ConcurrentHashMap查找和几次原子自增，不分配对象。
+ *              为防止拼接了常量的SQL撑爆内存，两个映射都有上限，超过上限的SQL统一记在OTHER下。
+ *              执行时间超过slowQueryThreshold的语句会记一条WARN日志。
+ */
+@Component
+public class SqlMetrics {
+
+    static final int MAX_STATEMENTS = 500;
+    static final int MAX_RAW_SQL = 2000;
+    static final String OTHER = "<other>";
+
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, StatementStats> byRawSql = new ConcurrentHashMap<>();
+    private final Map<String, StatementStats> bySql = new ConcurrentHashMap<>();
+    private final LongAdder slowQueries = new LongAdder();
+
+    private volatile long slowQueryThresholdNanos;
+
+    public SqlMetrics(@Value("${jdbc.slowQueryThreshold:500}") long slowQueryThresholdMillis) {
+        setSlowQueryThresholdMillis(slowQueryThresholdMillis);
+    }
+
+    public long getSlowQueryThresholdMillis() {
+        return slowQueryThresholdNanos / 1_000_000;
+    }
+
+    /**
+     * @param millis 慢查询阈值(毫秒)，0表示不记录慢查询日志
+     */
+    public void setSlowQueryThresholdMillis(long millis) {
+        this.slowQueryThresholdNanos = millis <= 0 ? Long.MAX_VALUE : millis * 1_000_000;
+    }
+
+    public long getSlowQueries() {
+        return slowQueries.sum();
+    }
+
+    /**
+     * 查找原始SQL对应的统计，不存在时创建
+     * @param rawSql
+     * @return
+     */
+    public StatementStats statsFor(String rawSql) {
+        StatementStats stats = byRawSql.get(rawSql);
+        if (stats != null) {
+            return stats;
+        }
+        String sql = normalize(rawSql);
+        stats = bySql.get(sql);
+        if (stats == null) {
+            stats = bySql.size() < MAX_STATEMENTS ? bySql.computeIfAbsent(sql, StatementStats::new)
+                    : bySql.computeIfAbsent(OTHER, StatementStats::new);
+        }
+        if (byRawSql.size() < MAX_RAW_SQL) {
+            byRawSql.put(rawSql, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * 记录一次执行
+     * @param stats
+     * @param nanos 耗时
+     * @param error 是否抛出了SQLException
+     */
+    public void record(StatementStats stats, long nanos, boolean error) {
+        stats.record(nanos, error);
+        if (nanos >= slowQueryThresholdNanos) {
+            slowQueries.increment();
+            logger.warn("slow query {} ms: {}", nanos / 1_000_000, stats.getSql());
+        }
+    }
+
+    /**
+     * @return 所有语句的统计
+     */
+    public List<StatementStats> getStatements() {
+        return new ArrayList<>(bySql.values());
+    }
+
+    public void reset() {
+        byRawSql.clear();
+        bySql.clear();
+        slowQueries.reset();
+    }
+
+    /**
+     * 以Prometheus文本格式输出统计
+     * @param writer
+     * @throws IOException
+     */
+    public void writeText(Writer writer) throws IOException {
+        writer.write("# HELP sql_statement_duration_seconds SQL statement execution time.\n");
+        writer.write("# TYPE sql_statement_duration_seconds histogram\n");
+        List<StatementStats> statements = getStatements();
+        for (StatementStats stats : statements) {
+            stats.getLatency().writeText(writer, "sql_statement_duration_seconds", "sql=\"" + escape(stats.getSql()) + "\"");
+        }
+        writeMetric(writer, statements, "sql_statement_max_seconds", "gauge", "Slowest execution since start.",
+                (stats) -> String.valueOf(stats.getMaxNanos() / 1e9));
+        writeMetric(writer, statements, "sql_statement_rows_total", "counter", "Rows read or affected.",
+                (stats) -> String.valueOf(stats.getRows()));
+        writeMetric(writer, statements, "sql_statement_errors_total", "counter", "Executions that threw SQLException.",
+                (stats) -> String.valueOf(stats.getErrors()));
+        writer.write("# HELP sql_slow_queries_total Executions slower than the slow query threshold.\n");
+        writer.write("# TYPE sql_slow_queries_total counter\n");
+        writer.write("sql_slow_queries_total " + getSlowQueries() + "\n");
+    }
+
+    private static void writeMetric(Writer writer, List<StatementStats> statements, String name, String type, String help,
+                                    Function<StatementStats, String> value) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " " + type + "\n");
+        for (StatementStats stats : statements) {
+            writer.write(name + "{sql=\"" + escape(stats.getSql()) + "\"} " + value.apply(stats) + "\n");
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * 规范化SQL
+     * @param sql
+     * @return
+     */
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                continue;
+            }
+            if (c == '\'') {
+                //字符串常量，''是转义的单引号
+                i++;
+                while (i < n) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                sb.append('?');
+                continue;
+            }
+            if (Character.isDigit(c) && (sb.length() == 0 || !isIdentifierPart(sb.charAt(sb.length() - 1)))) {
+                while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                sb.append('?');
+                continue;
+            }
+            sb.append(c);
+            i++;
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ' ' || sb.charAt(end - 1) == ';')) {
+            end--;
+        }
+        sb.setLength(end);
+        //IN (?,?,?)合并为IN (?)
+        return sb.toString().replaceAll("(?i)\\bIN\\s*\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)", "IN (?)");
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -0,0 +1,70 @@
+package com.jacky.jdbc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-02-02 20:10
+ * @discription 一条规范化SQL的执行统计：耗时直方图、行数和出错次数
+ *              record()只做计数器的原子自增，不分配对象，可以在生产环境中一直开启。
+ */
+public class StatementStats {
+
+    private final String sql;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+
+    StatementStats(String sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * @return 规范化后的SQL
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    void record(long nanos, boolean error) {
+        latency.record(nanos);
+        if (error) {
+            errors.increment();
+        }
+    }
+
+    void addRows(long n) {
+        if (n > 0) {
+            rows.add(n);
+        }
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getRows() {
+        return rows.sum();
+    }
+
+    public long getTotalNanos() {
+        return latency.getTotalNanos();
+    }
+
+    public long getMaxNanos() {
+        return latency.getMaxNanos();
+    }
+
+    public long percentileMicros(double p) {
+        return latency.percentileMicros(p);
+    }
+}
@@ -0,0 +1,98 @@
+package com.jacky.mbean;
+
+import com.jacky.jdbc.LatencyHistogram;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-02-05 21:00
+ * @discription ApiController异步查询使用的线程池的统计数据，通过JMX查看。
+ *              排队时间是提交到开始执行的时间，执行时间包括查询数据库和写出响应的时间，
+ *              排队时间变长、拒绝或超时增加，说明api.executor.poolSize不足或数据库变慢。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=apiExecutor", description = "Async API executor statistics")
+public class ApiExecutorMBean {
+
+    @Autowired
+    @Qualifier("apiExecutor")
+    ThreadPoolTaskExecutor apiExecutor;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+
+    @ManagedAttribute(description = "Threads currently running tasks")
+    public int getActiveCount() {
+        return apiExecutor.getActiveCount();
+    }
+
+    @ManagedAttribute(description = "Tasks waiting in the queue")
+    public int getQueueSize() {
+        return apiExecutor.getThreadPoolExecutor().getQueue().size();
+    }
+
+    @ManagedAttribute(description = "Total tasks submitted")
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    @ManagedAttribute(description = "Total tasks rejected because the queue was full")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @ManagedAttribute(description = "Total requests that timed out before a result was ready")
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @ManagedAttribute(description = "Average time waiting in the queue in milliseconds")
+    public double getAverageQueueMillis() {
+        return queueTime.getAverageMillis();
+    }
+
+    @ManagedAttribute(description = "99th percentile time waiting in the queue in milliseconds")
+    public double getQueueP99Millis() {
+        return queueTime.percentileMicros(0.99) / 1e3;
+    }
+
+    @ManagedAttribute(description = "Average time running a task in milliseconds")
+    public double getAverageRunMillis() {
+        return runTime.getAverageMillis();
+    }
+
+    @ManagedAttribute(description = "99th percentile time running a task in milliseconds")
+    public double getRunP99Millis() {
+        return runTime.percentileMicros(0.99) / 1e3;
+    }
+
+    /**
+     * 以下方法不会被暴露给JMX。
+     */
+    public void onSubmit() {
+        submitted.increment();
+    }
+
+    public void onReject() {
+        rejected.increment();
+    }
+
+    public void onTimeout() {
+        timeouts.increment();
+    }
+
+    public void onComplete(long queueNanos, long runNanos) {
+        queueTime.record(queueNanos);
+        runTime.record(runNanos);
+    }
+}
@@ -0,0 +1,47 @@
+package com.jacky.mbean;
+
+import com.jacky.service.BasicAuthService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author jacky
+ * @time 2021-02-08 20:40
+ * @discription Basic认证凭据缓存的统计数据，通过JMX查看。
+ *              未命中的请求才会查询用户并校验密码，修改密码或禁用用户后可以调用invalidateAll()立即生效。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=basicAuth", description = "Basic authentication credential cache")
+public class BasicAuthMBean {
+
+    @Autowired
+    BasicAuthService basicAuthService;
+
+    @ManagedAttribute(description = "Estimated number of cached credentials")
+    public long getSize() {
+        return basicAuthService.getCacheSize();
+    }
+
+    @ManagedAttribute(description = "Total authentications served from the cache")
+    public long getHitCount() {
+        return basicAuthService.getCacheStats().hitCount();
+    }
+
+    @ManagedAttribute(description = "Total authentications verified against the user store")
+    public long getMissCount() {
+        return basicAuthService.getCacheStats().missCount();
+    }
+
+    @ManagedAttribute(description = "Ratio of authentications served from the cache")
+    public double getHitRate() {
+        return basicAuthService.getCacheStats().hitRate();
+    }
+
+    @ManagedOperation(description = "Discard all cached credentials")
+    public void invalidateAll() {
+        basicAuthService.invalidateCache();
+    }
+}
@@ -0,0 +1,113 @@
+package com.jacky.mbean;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-01-26 20:30
+ * @discription 聊天室的统计数据，通过JMX查看。
+ *              RTT是服务器发出Ping到收到Pong的时间，包含了在发送队列中排队的时间，
+ *              因此能反映客户端实际感受到的延迟。
+ *              此外还统计了因超过限速或长度限制而被丢弃的客户端消息。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=chat", description = "Chat statistics")
+public class ChatMBean {
+
+    private final AtomicLong sessions = new AtomicLong();
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder pongsReceived = new LongAdder();
+    private final LongAdder evictedSessions = new LongAdder();
+    private final LongAdder throttledFrames = new LongAdder();
+    private final LongAdder oversizedFrames = new LongAdder();
+
+    private final LongAdder rttCount = new LongAdder();
+    private final LongAdder rttTotal = new LongAdder();
+    private final AtomicLong rttMax = new AtomicLong();
+    private volatile long rttLast = -1;
+
+    @ManagedAttribute(description = "Number of open chat sessions at the last heartbeat")
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    @ManagedAttribute(description = "Total pings sent")
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    @ManagedAttribute(description = "Total pongs received")
+    public long getPongsReceived() {
+        return pongsReceived.sum();
+    }
+
+    @ManagedAttribute(description = "Total sessions evicted for missing pongs")
+    public long getEvictedSessions() {
+        return evictedSessions.sum();
+    }
+
+    @ManagedAttribute(description = "Total inbound frames dropped for exceeding the per-session rate limit")
+    public long getThrottledFrames() {
+        return throttledFrames.sum();
+    }
+
+    @ManagedAttribute(description = "Total inbound frames dropped for exceeding the maximum frame length")
+    public long getOversizedFrames() {
+        return oversizedFrames.sum();
+    }
+
+    @ManagedAttribute(description = "Last measured round-trip time in milliseconds")
+    public long getLastRoundTripMillis() {
+        return rttLast;
+    }
+
+    @ManagedAttribute(description = "Average round-trip time in milliseconds")
+    public double getAverageRoundTripMillis() {
+        long count = rttCount.sum();
+        return count == 0 ? 0 : (double) rttTotal.sum() / count;
+    }
+
+    @ManagedAttribute(description = "Maximum round-trip time in milliseconds")
+    public long getMaxRoundTripMillis() {
+        return rttMax.get();
+    }
+
+    /**
+     * 以下方法不会被暴露给JMX。
+     */
+    public void setSessions(long count) {
+        sessions.set(count);
+    }
+
+    public void onPing() {
+        pingsSent.increment();
+    }
+
+    public void onPong(long rtt) {
+        pongsReceived.increment();
+        if (rtt < 0) {
+            return;
+        }
+        rttCount.increment();
+        rttTotal.add(rtt);
+        rttMax.accumulateAndGet(rtt, Math::max);
+        rttLast = rtt;
+    }
+
+    public void onEvict() {
+        evictedSessions.increment();
+    }
+
+    public void onThrottled() {
+        throttledFrames.increment();
+    }
+
+    public void onOversized() {
+        oversizedFrames.increment();
+    }
+}
@@ -0,0 +1,148 @@
+package com.jacky.mbean;
+
+import com.jacky.jdbc.LatencyHistogram;
+import com.jacky.jdbc.PoolMetrics;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+
+/**
+ * @author jacky
+ * @time 2021-02-03 21:00
+ * @discription Hikari连接池的状态和配置，通过JMX查看。
+ *              连接池大小和超时可以在运行时修改，立即生效，重启后恢复为jdbc.properties中的配置：
+ *              先观察等待线程数和获取连接的等待时间，再决定是否调整maximumPoolSize。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=connectionPool", description = "JDBC connection pool statistics")
+public class ConnectionPoolMBean {
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    PoolMetrics poolMetrics;
+
+    HikariDataSource hikari;
+
+    @PostConstruct
+    public void init() throws SQLException {
+        //createDataSource()可能用InstrumentedDataSource包装了连接池
+        this.hikari = dataSource.unwrap(HikariDataSource.class);
+    }
+
+    private HikariPoolMXBean pool() {
+        return hikari.getHikariPoolMXBean();
+    }
+
+    @ManagedAttribute(description = "Connections in use")
+    public int getActiveConnections() {
+        return pool().getActiveConnections();
+    }
+
+    @ManagedAttribute(description = "Idle connections")
+    public int getIdleConnections() {
+        return pool().getIdleConnections();
+    }
+
+    @ManagedAttribute(description = "Open connections")
+    public int getTotalConnections() {
+        return pool().getTotalConnections();
+    }
+
+    @ManagedAttribute(description = "Threads waiting for a connection")
+    public int getThreadsAwaitingConnection() {
+        return pool().getThreadsAwaitingConnection();
+    }
+
+    @ManagedAttribute(description = "Total connection requests that timed out")
+    public long getConnectionTimeouts() {
+        return poolMetrics.getTimeouts();
+    }
+
+    @ManagedAttribute(description = "Average time to acquire a connection in milliseconds")
+    public double getAcquireAverageMillis() {
+        return poolMetrics.getAcquire().getAverageMillis();
+    }
+
+    @ManagedAttribute(description = "50th percentile time to acquire a connection in milliseconds")
+    public double getAcquireP50Millis() {
+        return poolMetrics.getAcquire().percentileMicros(0.5) / 1e3;
+    }
+
+    @ManagedAttribute(description = "99th percentile time to acquire a connection in milliseconds")
+    public double getAcquireP99Millis() {
+        return poolMetrics.getAcquire().percentileMicros(0.99) / 1e3;
+    }
+
+    @ManagedAttribute(description = "Maximum time to acquire a connection in milliseconds")
+    public double getAcquireMaxMillis() {
+        return poolMetrics.getAcquire().getMaxNanos() / 1e6;
+    }
+
+    @ManagedAttribute(description = "99th percentile time a connection was borrowed in milliseconds")
+    public double getUsageP99Millis() {
+        LatencyHistogram usage = poolMetrics.getUsage();
+        return usage.percentileMicros(0.99) / 1e3;
+    }
+
+    @ManagedAttribute(description = "Maximum number of connections")
+    public int getMaximumPoolSize() {
+        return hikari.getMaximumPoolSize();
+    }
+
+    @ManagedAttribute
+    public void setMaximumPoolSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("maximumPoolSize must be at least 1");
+        }
+        hikari.setMaximumPoolSize(size);
+    }
+
+    @ManagedAttribute(description = "Minimum number of idle connections")
+    public int getMinimumIdle() {
+        return hikari.getMinimumIdle();
+    }
+
+    @ManagedAttribute
+    public void setMinimumIdle(int minimumIdle) {
+        hikari.setMinimumIdle(minimumIdle);
+    }
+
+    @ManagedAttribute(description = "Maximum time to wait for a connection in milliseconds")
+    public long getConnectionTimeout() {
+        return hikari.getConnectionTimeout();
+    }
+
+    @ManagedAttribute
+    public void setConnectionTimeout(long millis) {
+        hikari.setConnectionTimeout(millis);
+    }
+
+    @ManagedAttribute(description = "Time an idle connection is kept above minimumIdle in milliseconds")
+    public long getIdleTimeout() {
+        return hikari.getIdleTimeout();
+    }
+
+    @ManagedAttribute
+    public void setIdleTimeout(long millis) {
+        hikari.setIdleTimeout(millis);
+    }
+
+    @ManagedAttribute(description = "Maximum lifetime of a connection in milliseconds")
+    public long getMaxLifetime() {
+        return hikari.getMaxLifetime();
+    }
+
+    @ManagedAttribute
+    public void setMaxLifetime(long millis) {
+        hikari.setMaxLifetime(millis);
+    }
+}
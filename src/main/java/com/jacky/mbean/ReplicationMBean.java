@@ -0,0 +1,55 @@
+package com.jacky.mbean;
+
+import com.jacky.jdbc.ReplicaLagMonitor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author jacky
+ * @time 2021-02-04 21:30
+ * @discription 读写分离的状态，通过JMX查看，允许的最大复制延迟可以在运行时修改。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=replication", description = "Read/write routing status")
+public class ReplicationMBean {
+
+    @Autowired
+    ReplicaLagMonitor replicaLagMonitor;
+
+    @ManagedAttribute(description = "Whether a replica is configured")
+    public boolean isEnabled() {
+        return replicaLagMonitor.isEnabled();
+    }
+
+    @ManagedAttribute(description = "Whether read-only transactions currently use the replica")
+    public boolean isReplicaAvailable() {
+        return replicaLagMonitor.isReplicaAvailable();
+    }
+
+    @ManagedAttribute(description = "Last measured replication lag in milliseconds, -1 if unknown")
+    public long getLagMillis() {
+        return replicaLagMonitor.getLag();
+    }
+
+    @ManagedAttribute(description = "Maximum lag in milliseconds before falling back to the primary")
+    public long getMaxLagMillis() {
+        return replicaLagMonitor.getMaxLag();
+    }
+
+    @ManagedAttribute
+    public void setMaxLagMillis(long millis) {
+        replicaLagMonitor.setMaxLag(millis);
+    }
+
+    @ManagedAttribute(description = "Total read-only transactions routed to the replica")
+    public long getReplicaConnections() {
+        return replicaLagMonitor.getReplicaConnections();
+    }
+
+    @ManagedAttribute(description = "Total read-only transactions routed to the primary because the replica lagged")
+    public long getFallbackConnections() {
+        return replicaLagMonitor.getFallbackConnections();
+    }
+}
@@ -0,0 +1,90 @@
+package com.jacky.mbean;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author jacky
+ * @time 2021-02-01 21:00
+ * @discription 登录时校验密码的线程池的统计数据，通过JMX查看。
+ *              排队时间是提交到开始执行的时间，校验时间是查询用户和计算密码哈希的时间，
+ *              排队时间明显变长或拒绝次数增加，说明signin.poolSize不足。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=signin", description = "Signin credential verification statistics")
+public class SigninMBean {
+
+    @Autowired
+    @Qualifier("signinExecutor")
+    ThreadPoolTaskExecutor signinExecutor;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder verifyNanos = new LongAdder();
+
+    @ManagedAttribute(description = "Threads currently verifying credentials")
+    public int getActiveCount() {
+        return signinExecutor.getActiveCount();
+    }
+
+    @ManagedAttribute(description = "Verifications waiting in the queue")
+    public int getQueueSize() {
+        return signinExecutor.getThreadPoolExecutor().getQueue().size();
+    }
+
+    @ManagedAttribute(description = "Total verifications submitted")
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    @ManagedAttribute(description = "Total verifications rejected because the queue was full")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @ManagedAttribute(description = "Total signins that failed verification")
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @ManagedAttribute(description = "Average time waiting in the queue in milliseconds")
+    public double getAverageQueueMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0 : queueNanos.sum() / 1e6 / count;
+    }
+
+    @ManagedAttribute(description = "Average time verifying credentials in milliseconds")
+    public double getAverageVerifyMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0 : verifyNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * 以下方法不会被暴露给JMX。
+     */
+    public void onSubmit() {
+        submitted.increment();
+    }
+
+    public void onReject() {
+        rejected.increment();
+    }
+
+    public void onComplete(long queueTime, long verifyTime, boolean success) {
+        completed.increment();
+        queueNanos.add(queueTime);
+        verifyNanos.add(verifyTime);
+        if (!success) {
+            failed.increment();
+        }
+    }
+}
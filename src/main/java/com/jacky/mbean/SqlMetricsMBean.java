@@ -0,0 +1,69 @@
+package com.jacky.mbean;
+
+import com.jacky.jdbc.SqlMetrics;
+import com.jacky.jdbc.StatementStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @author jacky
+ * @time 2021-02-02 21:30
+ * @discription SQL执行统计，通过JMX查看，慢查询阈值可以在运行时修改。
+ *              同样的数据也可以通过/metrics以文本格式读取。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=sqlMetrics", description = "SQL statement statistics")
+public class SqlMetricsMBean {
+
+    @Autowired
+    SqlMetrics sqlMetrics;
+
+    @ManagedAttribute(description = "Number of distinct normalized statements")
+    public int getStatementCount() {
+        return sqlMetrics.getStatements().size();
+    }
+
+    @ManagedAttribute(description = "Total executions slower than the threshold")
+    public long getSlowQueries() {
+        return sqlMetrics.getSlowQueries();
+    }
+
+    @ManagedAttribute(description = "Slow query threshold in milliseconds, 0 disables the slow query log")
+    public long getSlowQueryThresholdMillis() {
+        return sqlMetrics.getSlowQueryThresholdMillis();
+    }
+
+    @ManagedAttribute
+    public void setSlowQueryThresholdMillis(long millis) {
+        sqlMetrics.setSlowQueryThresholdMillis(millis);
+    }
+
+    @ManagedOperation(description = "Statements with the highest total time: count, avg/p99/max ms, rows, errors, sql")
+    @ManagedOperationParameter(name = "limit", description = "Maximum number of statements")
+    public String[] top(int limit) {
+        List<StatementStats> statements = sqlMetrics.getStatements();
+        statements.sort(Comparator.comparingLong(StatementStats::getTotalNanos).reversed());
+        int n = Math.min(Math.max(limit, 0), statements.size());
+        String[] result = new String[n];
+        for (int i = 0; i < n; i++) {
+            StatementStats stats = statements.get(i);
+            long count = stats.getCount();
+            result[i] = String.format("count=%d avg=%.3f p99=%.3f max=%.3f rows=%d errors=%d %s", count,
+                    count == 0 ? 0 : stats.getTotalNanos() / 1e6 / count, stats.percentileMicros(0.99) / 1e3,
+                    stats.getMaxNanos() / 1e6, stats.getRows(), stats.getErrors(), stats.getSql());
+        }
+        return result;
+    }
+
+    @ManagedOperation(description = "Discard all statistics")
+    public void reset() {
+        sqlMetrics.reset();
+    }
+}
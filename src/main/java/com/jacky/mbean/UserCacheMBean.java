@@ -0,0 +1,69 @@
+package com.jacky.mbean;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.jacky.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author jacky
+ * @time 2021-01-29 21:00
+ * @discription UserService中用户缓存的统计数据，通过JMX查看。
+ *              命中、未命中、加载和淘汰的次数都是启动以来的累计值。
+ */
+@Component
+@ManagedResource(objectName = "sample:name=userCache", description = "User cache statistics")
+public class UserCacheMBean {
+
+    @Autowired
+    UserService userService;
+
+    @ManagedAttribute(description = "Estimated number of cached users")
+    public long getSize() {
+        return userService.getCacheSize();
+    }
+
+    @ManagedAttribute(description = "Total cache hits")
+    public long getHitCount() {
+        return userService.getCacheStats().hitCount();
+    }
+
+    @ManagedAttribute(description = "Total cache misses")
+    public long getMissCount() {
+        return userService.getCacheStats().missCount();
+    }
+
+    @ManagedAttribute(description = "Ratio of requests that were hits")
+    public double getHitRate() {
+        return userService.getCacheStats().hitRate();
+    }
+
+    @ManagedAttribute(description = "Ratio of requests that were misses")
+    public double getMissRate() {
+        return userService.getCacheStats().missRate();
+    }
+
+    @ManagedAttribute(description = "Total entries evicted by size or expiration")
+    public long getEvictionCount() {
+        return userService.getCacheStats().evictionCount();
+    }
+
+    @ManagedAttribute(description = "Total loads that failed, including users not found")
+    public long getLoadFailureCount() {
+        return userService.getCacheStats().loadFailureCount();
+    }
+
+    @ManagedAttribute(description = "Average time spent loading from the database in milliseconds")
+    public double getAverageLoadPenaltyMillis() {
+        CacheStats stats = userService.getCacheStats();
+        return stats.averageLoadPenalty() / 1_000_000;
+    }
+
+    @ManagedOperation(description = "Discard all cached users")
+    public void invalidateAll() {
+        userService.invalidateCache();
+    }
+}
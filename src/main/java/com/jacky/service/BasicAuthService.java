@@ -0,0 +1,177 @@
+package com.jacky.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.jacky.entity.User;
+import com.jacky.web.UserController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author jacky
+ * @time 2021-02-08 20:15
+ * @discription Basic认证，AuthInterceptor和AuthFilter共用
+ *              机器客户端每个请求都带Authorization: Basic，每次都要走signinExecutor查询用户并计算密码哈希，
+ *              使用PBKDF2时每次校验都要几十毫秒。因此把校验通过的凭据缓存起来：
+ *                  1）key是email:password的HMAC-SHA256，HMAC的密钥启动时随机生成，内存中不保存明文密码，
+ *                     也无法离线从key反推密码；
+ *                  2）缓存容量有上限，写入后超过expireAfterWrite秒失效，用户改名等变化最多延迟这么久才生效；
+ *                  3）校验失败的凭据不缓存，每次都重新校验。
+ *              statelessPaths下的请求不创建HttpSession，认证通过的用户只保存在request属性KEY_USER中，
+ *              适合每次都带凭据的API客户端，避免每个请求都在服务器上留下一个会话；
+ *              UserSessionService是无状态模式时，所有路径都不创建HttpSession。
+ */
+@Component
+public class BasicAuthService {
+
+    static final String BASIC_PREFIX = "Basic ";
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    UserService userService;
+
+    @Autowired
+    UserSessionService userSessionService;
+
+    @Value("${auth.basic.cache.maximumSize:10000}")
+    long cacheMaximumSize;
+
+    @Value("${auth.basic.cache.expireAfterWrite:60}")
+    long cacheExpireAfterWrite;
+
+    @Value("${auth.basic.statelessPaths:/api/}")
+    String[] statelessPaths;
+
+    //凭据的HMAC -> User
+    Cache<String, User> credentialCache;
+
+    private SecretKeySpec digestKey;
+
+    @PostConstruct
+    public void init() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.digestKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+        this.credentialCache = Caffeine.newBuilder().maximumSize(cacheMaximumSize)
+                .expireAfterWrite(cacheExpireAfterWrite, TimeUnit.SECONDS).recordStats().build();
+    }
+
+    /**
+     * 按Authorization头认证，通过后把用户保存到HttpSession，statelessPaths下的请求只保存到request属性
+     * @param request
+     * @return 认证通过的用户，没有Basic认证头时返回null
+     * @throws RuntimeException 认证头格式错误、用户不存在或密码错误
+     */
+    public User authenticate(HttpServletRequest request) {
+        Credentials credentials = decode(request.getHeader("Authorization"));
+        if (credentials == null) {
+            return null;
+        }
+        String key = digest(credentials);
+        User user = credentialCache.getIfPresent(key);
+        if (user == null) {
+            // 同一凭据的并发请求可能各校验一次，但不会在缓存内部持锁等待校验:
+            user = userService.signin(credentials.email, credentials.password);
+            credentialCache.put(key, user);
+            logger.info("user {} login by authorization header ok.", credentials.email);
+        }
+        if (isStateless(request) || userSessionService.isStateless()) {
+            request.setAttribute(UserController.KEY_USER, user);
+        } else {
+            request.getSession().setAttribute(UserController.KEY_USER, user);
+        }
+        return user;
+    }
+
+    /**
+     * 解析Basic认证头，email和密码都是URL编码的
+     * @param authHeader Authorization头
+     * @return 不是Basic认证或没有冒号分隔时返回null
+     * @throws IllegalArgumentException 不是合法的Base64
+     */
+    public static Credentials decode(String authHeader) {
+        if (authHeader == null || !authHeader.startsWith(BASIC_PREFIX)) {
+            return null;
+        }
+        String up = new String(Base64.getDecoder().decode(authHeader.substring(BASIC_PREFIX.length())), StandardCharsets.UTF_8);
+        int pos = up.indexOf(':');
+        if (pos <= 0) {
+            return null;
+        }
+        try {
+            return new Credentials(URLDecoder.decode(up.substring(0, pos), StandardCharsets.UTF_8.name()),
+                    URLDecoder.decode(up.substring(pos + 1), StandardCharsets.UTF_8.name()));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public CacheStats getCacheStats() {
+        return credentialCache.stats();
+    }
+
+    public long getCacheSize() {
+        return credentialCache.estimatedSize();
+    }
+
+    public void invalidateCache() {
+        credentialCache.invalidateAll();
+    }
+
+    private boolean isStateless(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String prefix : statelessPaths) {
+            if (!prefix.isEmpty() && path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String digest(Credentials credentials) {
+        try {
+            // Mac不是线程安全的，每次创建一个:
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(digestKey);
+            // email前加上长度，不同的email和密码拆分方式不会得到相同的输入:
+            byte[] email = credentials.email.getBytes(StandardCharsets.UTF_8);
+            mac.update(ByteBuffer.allocate(4).putInt(email.length).array());
+            mac.update(email);
+            return Base64.getEncoder().encodeToString(mac.doFinal(credentials.password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 从Basic认证头解析出的email和密码
+     */
+    public static final class Credentials {
+        public final String email;
+        public final String password;
+
+        Credentials(String email, String password) {
+            this.email = email;
+            this.password = password;
+        }
+    }
+}
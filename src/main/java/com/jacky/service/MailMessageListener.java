@@ -32,10 +32,11 @@ public class MailMessageListener {
      * @JmsListener指定了Queue的名称，因此，凡是发到此Queue的消息都会被这个onMailMessageReceived()方法处理，
      * 方法参数是JMS的Message接口，
      * 我们通过强制转型为TextMessage并提取JSON，反序列化后获得自定义的JavaBean，也就获得了发送邮件所需的所有信息。
+     * 发送邮件会阻塞，同时处理的消息数由jms.mail.concurrency决定，虚拟线程模式下可以调得更大。
      * @param message
      * @throws Exception
      */
-    @JmsListener(destination = "jms/queue/mail", concurrency = "10")
+    @JmsListener(destination = "jms/queue/mail", concurrency = "${jms.mail.concurrency:10}")
     public void onMailMessageReceived(Message message) throws Exception {
         logger.info("received message: " + message);
         if (message instanceof TextMessage) {
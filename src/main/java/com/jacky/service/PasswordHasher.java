@@ -0,0 +1,24 @@
+package com.jacky.service;
+
+/**
+ * @author jacky
+ * @time 2021-02-01 20:10
+ * @discription 密码哈希
+ *              注册时用hash()计算保存到数据库的值，登录时用matches()校验。
+ *              具体使用哪种实现由password.hasher配置决定，见WebConfig.createPasswordHasher()。
+ */
+public interface PasswordHasher {
+
+    /**
+     * @param password 明文密码
+     * @return 保存到数据库的值
+     */
+    String hash(String password);
+
+    /**
+     * @param password 明文密码
+     * @param stored 数据库中保存的值
+     * @return 密码是否正确
+     */
+    boolean matches(String password, String stored);
+}
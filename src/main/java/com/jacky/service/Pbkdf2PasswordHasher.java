@@ -0,0 +1,76 @@
+package com.jacky.service;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * @author jacky
+ * @time 2021-02-01 20:20
+ * @discription 使用JDK自带的PBKDF2WithHmacSHA256计算密码哈希，迭代次数越多，计算越慢，暴力破解的代价越高。
+ *              保存的格式为pbkdf2$迭代次数$盐$哈希，校验时使用保存的迭代次数，
+ *              因此调高iterations后，已有的哈希仍然可以校验。
+ *              不以pbkdf2$开头的值被当作切换前保存的明文密码。
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    static final String PREFIX = "pbkdf2$";
+    static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    static final int SALT_LENGTH = 16;
+    static final int KEY_LENGTH = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    private final PlainPasswordHasher legacy = new PlainPasswordHasher();
+
+    public Pbkdf2PasswordHasher(int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        this.iterations = iterations;
+    }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+                + encoder.encodeToString(derive(password, salt, iterations));
+    }
+
+    @Override
+    public boolean matches(String password, String stored) {
+        if (password == null || stored == null) {
+            return false;
+        }
+        if (!stored.startsWith(PREFIX)) {
+            return legacy.matches(password, stored);
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[3]);
+            return MessageDigest.isEqual(expected, derive(password, decoder.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.jacky.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * @author jacky
+ * @time 2021-02-01 20:15
+ * @discription 明文保存密码，与已有的数据兼容，只用于开发环境
+ */
+public class PlainPasswordHasher implements PasswordHasher {
+
+    @Override
+    public String hash(String password) {
+        return password;
+    }
+
+    @Override
+    public boolean matches(String password, String stored) {
+        if (password == null || stored == null) {
+            return false;
+        }
+        //逐字节比较全部内容，耗时与在哪一位不同无关
+        return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,224 @@
+package com.jacky.service;
+
+import com.jacky.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author jacky
+ * @time 2021-01-31 14:30
+ * @discription 批量导入用户
+ *              register()每个用户一次INSERT、一次提交，导入大量用户时很慢。
+ *              这里把用户按batchSize分块，每块：
+ *                  1）一条SELECT ... WHERE email IN (...)找出已存在的email，连同块内重复和字段不合法的行记为冲突；
+ *                  2）在事务之外并行计算其余行的密码哈希，PBKDF2很慢，放在事务中会让事务和连接占用很久；
+ *                  3）其余的行用一次batchUpdate插入，整块在一个事务中提交；
+ *              冲突的行只记录下来，不会让整个导入失败。
+ *              如果在检查和插入之间有其他请求注册了相同的email，batchUpdate会因UNIQUE约束失败，
+ *              此时整块回滚，改为逐行插入，只有真正冲突的行被记录。
+ *              导入的用户不需要清除UserService的缓存，因为不存在的用户不会被缓存。
+ */
+@Component
+public class UserImportService {
+
+    //最多在结果中列出的冲突行数，超过的只计数
+    static final int MAX_REPORTED_CONFLICTS = 1000;
+    static final int MAX_LENGTH = 100;
+    static final String INSERT_SQL = "INSERT INTO users(email,password,name,createdAt) VALUES(?,?,?,?)";
+
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    PasswordHasher passwordHasher;
+
+    @Value("${user.import.batchSize:1000}")
+    int batchSize;
+
+    TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void init() {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * 导入用户，users按需逐个读取，不会一次性读入内存
+     * @param users 待导入的用户，读取时抛出的异常会终止导入，已提交的块不会回滚
+     * @return 导入结果
+     */
+    public ImportResult importUsers(Iterator<User> users) {
+        long start = System.currentTimeMillis();
+        ImportResult result = new ImportResult();
+        List<Row> chunk = new ArrayList<>(batchSize);
+        int row = 0;
+        while (true) {
+            User user;
+            try {
+                if (!users.hasNext()) {
+                    break;
+                }
+                row++;
+                user = users.next();
+            } catch (RuntimeException e) {
+                result.error = "row " + row + ": " + e.getMessage();
+                break;
+            }
+            chunk.add(new Row(row, user));
+            if (chunk.size() >= batchSize) {
+                importChunk(chunk, result);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            importChunk(chunk, result);
+        }
+        logger.info("imported {} users, {} conflicts in {} ms.", result.imported, result.conflictCount,
+                System.currentTimeMillis() - start);
+        return result;
+    }
+
+    private void importChunk(List<Row> chunk, ImportResult result) {
+        List<Row> candidates = new ArrayList<>(chunk.size());
+        Set<String> emails = new HashSet<>();
+        for (Row row : chunk) {
+            String invalid = validate(row.user);
+            if (invalid != null) {
+                result.addConflict(row, invalid);
+            } else if (!emails.add(row.user.getEmail())) {
+                result.addConflict(row, "duplicate email in import");
+            } else {
+                candidates.add(row);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Set<String> existing = findExistingEmails(emails);
+        List<Row> inserts = new ArrayList<>(candidates.size());
+        for (Row row : candidates) {
+            if (existing.contains(row.user.getEmail())) {
+                result.addConflict(row, "email already exists");
+            } else {
+                inserts.add(row);
+            }
+        }
+        if (inserts.isEmpty()) {
+            return;
+        }
+        // 并行计算哈希，forEach返回后所有行的passwordHash对当前线程可见:
+        inserts.parallelStream().forEach(row -> row.passwordHash = passwordHasher.hash(row.user.getPassword()));
+        long now = System.currentTimeMillis();
+        List<Object[]> args = new ArrayList<>(inserts.size());
+        for (Row row : inserts) {
+            args.add(toArgs(row, now));
+        }
+        try {
+            transactionTemplate.execute((status) -> jdbcTemplate.batchUpdate(INSERT_SQL, args));
+            result.imported += args.size();
+        } catch (DuplicateKeyException e) {
+            logger.warn("batch insert conflicted with a concurrent write, retry row by row: {}", e.getMessage());
+            for (Row row : inserts) {
+                try {
+                    jdbcTemplate.update(INSERT_SQL, toArgs(row, now));
+                    result.imported++;
+                } catch (DuplicateKeyException ex) {
+                    result.addConflict(row, "email already exists");
+                }
+            }
+        }
+    }
+
+    private Set<String> findExistingEmails(Set<String> emails) {
+        StringBuilder sql = new StringBuilder("SELECT email FROM users WHERE email IN (");
+        for (int i = 0; i < emails.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+        return new HashSet<>(jdbcTemplate.queryForList(sql.toString(), String.class, emails.toArray()));
+    }
+
+    private static Object[] toArgs(Row row, long createdAt) {
+        return new Object[] { row.user.getEmail(), row.passwordHash, row.user.getName(), createdAt };
+    }
+
+    private static String validate(User user) {
+        if (user == null) {
+            return "empty row";
+        }
+        if (isBlank(user.getEmail()) || isBlank(user.getPassword()) || isBlank(user.getName())) {
+            return "email, password and name are required";
+        }
+        if (user.getEmail().length() > MAX_LENGTH || user.getPassword().length() > MAX_LENGTH
+                || user.getName().length() > MAX_LENGTH) {
+            return "field too long";
+        }
+        return null;
+    }
+
+    private static boolean isBlank(String s) {
+        return s == null || s.trim().isEmpty();
+    }
+
+    static final class Row {
+        final int row;
+        final User user;
+        //在事务之外计算的密码哈希
+        String passwordHash;
+
+        Row(int row, User user) {
+            this.row = row;
+            this.user = user;
+        }
+    }
+
+    /**
+     * 导入结果
+     */
+    public static class ImportResult {
+        public int imported;
+        public int conflictCount;
+        public List<Conflict> conflicts = new ArrayList<>();
+        //读取请求内容出错时的原因，出错之前的行已经导入
+        public String error;
+
+        void addConflict(Row row, String reason) {
+            conflictCount++;
+            if (conflicts.size() < MAX_REPORTED_CONFLICTS) {
+                conflicts.add(new Conflict(row.row, row.user == null ? null : row.user.getEmail(), reason));
+            }
+        }
+    }
+
+    public static class Conflict {
+        //从1开始的行号，JSON数组中是第几个元素，CSV中不计标题行
+        public int row;
+        public String email;
+        public String reason;
+
+        Conflict(int row, String email, String reason) {
+            this.row = row;
+            this.email = email;
+            this.reason = reason;
+        }
+    }
+}
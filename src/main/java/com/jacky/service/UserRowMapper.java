@@ -0,0 +1,87 @@
+package com.jacky.service;
+
+import com.jacky.entity.User;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * @author jacky
+ * @time 2021-01-30 15:20
+ * @discription User专用的RowMapper
+ *              BeanPropertyRowMapper每一行都要按列名查找属性，再通过反射调用setter；
+ *              这里在读取第一行时按列名确定每个属性对应的列序号，之后每一行直接按序号读取并调用setter。
+ *              列名不区分大小写，也支持created_at这样的下划线写法；结果集中没有的列不读取。
+ *
+ *              列序号保存在实例中，因此不是线程安全的，每次查询都要创建一个新实例：
+ *                  jdbcTemplate.query(sql, new UserRowMapper());
+ */
+public class UserRowMapper implements RowMapper<User> {
+
+    //列序号从1开始，0表示结果集中没有该列
+    private int id;
+    private int email;
+    private int password;
+    private int name;
+    private int createdAt;
+    private boolean resolved;
+
+    @Override
+    public User mapRow(ResultSet rs, int rowNum) throws SQLException {
+        if (!resolved) {
+            resolve(rs.getMetaData());
+        }
+        User user = new User();
+        if (id > 0) {
+            long value = rs.getLong(id);
+            user.setId(rs.wasNull() ? null : value);
+        }
+        if (email > 0) {
+            user.setEmail(rs.getString(email));
+        }
+        if (password > 0) {
+            user.setPassword(rs.getString(password));
+        }
+        if (name > 0) {
+            user.setName(rs.getString(name));
+        }
+        if (createdAt > 0) {
+            user.setCreatedAt(rs.getLong(createdAt));
+        }
+        return user;
+    }
+
+    private void resolve(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        for (int i = 1; i <= count; i++) {
+            String column = metaData.getColumnLabel(i);
+            if (column == null || column.isEmpty()) {
+                column = metaData.getColumnName(i);
+            }
+            // 按Locale.ROOT转换，土耳其语环境下"ID"不会变成"ıd":
+            switch (column.replace("_", "").toLowerCase(Locale.ROOT)) {
+                case "id":
+                    id = i;
+                    break;
+                case "email":
+                    email = i;
+                    break;
+                case "password":
+                    password = i;
+                    break;
+                case "name":
+                    name = i;
+                    break;
+                case "createdat":
+                    createdAt = i;
+                    break;
+                default:
+                    break;
+            }
+        }
+        resolved = true;
+    }
+}
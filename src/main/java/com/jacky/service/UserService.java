@@ -1,25 +1,60 @@
 package com.jacky.service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import javax.annotation.PostConstruct;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.jacky.entity.User;
+import com.jacky.mbean.ApiExecutorMBean;
+import com.jacky.mbean.SigninMBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 
 /**
  * @author jacky
  * @time 2020-12-25 23:10
  * @discription 用户相关操作业务层
+ *              每次Basic认证和/api/users/{id}都要查询用户，因此按id缓存用户：
+ *                  缓存由Caffeine实现，容量有上限，淘汰策略是W-TinyLFU，偶尔访问一次的用户不会挤掉经常访问的用户；
+ *                  写入后超过expireAfterWrite秒自动失效，register()和updateUser()会立即使对应的缓存失效；
+ *                  按email查询时先通过emailCache找到id，再从用户缓存中读取，用户数据只缓存一份，失效时只需按id删除。
+ *              缓存的统计数据通过UserCacheMBean暴露给JMX。
+ *              查询结果使用UserRowMapper按列序号映射，不再使用基于反射的BeanPropertyRowMapper。
+ *              列出用户等批量读取在只读事务中执行，配置了只读库时由ReadWriteRoutingDataSource路由到只读库。
+ *              缓存的加载方法不在事务中执行，始终读主库：只读库最多落后jdbc.replica.maxLag，
+ *              register()/updateUser()使缓存失效后如果从只读库加载，会把旧数据或"用户不存在"缓存expireAfterWrite秒，
+ *              刚注册的用户就无法登录。缓存命中时不查询数据库，加载只在未命中时发生，对主库的压力很小。
+ *              xxxAsync()在apiExecutor中执行查询，调用线程不会因为等待数据库而阻塞，排队已满时立即以RejectedExecutionException结束。
+ *              密码由PasswordHasher计算哈希后保存，登录时的查询和校验在独立的signinExecutor中执行，
+ *              哈希计算再慢也只占用signinExecutor的线程，不会占满Tomcat的请求线程；排队已满时立即拒绝。
+ *              email不存在时也用一个固定的哈希值校验一次密码，耗时与密码错误相同，无法通过响应时间判断email是否已注册。
  */
 @Component
 public class UserService {
@@ -29,31 +64,181 @@ public class UserService {
 	@Autowired
 	JdbcTemplate jdbcTemplate;
 
-	RowMapper<User> userRowMapper = new BeanPropertyRowMapper<>(User.class);
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Autowired
+	PasswordHasher passwordHasher;
+
+	@Autowired
+	@Qualifier("signinExecutor")
+	ThreadPoolTaskExecutor signinExecutor;
+
+	@Autowired
+	SigninMBean signinMBean;
+
+	@Autowired
+	@Qualifier("apiExecutor")
+	ThreadPoolTaskExecutor apiExecutor;
+
+	@Autowired
+	ApiExecutorMBean apiExecutorMBean;
 
+	//流式读取用户时每次从数据库取回的行数
+	@Value("${jdbc.fetchSize:500}")
+	int fetchSize;
+
+	@Value("${user.cache.maximumSize:10000}")
+	long cacheMaximumSize;
+
+	@Value("${user.cache.expireAfterWrite:300}")
+	long cacheExpireAfterWrite;
+
+	//id -> User
+	LoadingCache<Long, User> userCache;
+	//email -> id，email注册后不会改变
+	LoadingCache<String, Long> emailCache;
+
+	TransactionTemplate readOnlyTransaction;
+
+	//email不存在时用于校验的哈希值，对应的明文是启动时随机生成的
+	String dummyPasswordHash;
+
+	@PostConstruct
+	public void init() {
+		this.dummyPasswordHash = passwordHasher.hash(UUID.randomUUID().toString());
+		this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+		this.readOnlyTransaction.setReadOnly(true);
+		this.userCache = Caffeine.newBuilder().maximumSize(cacheMaximumSize)
+				.expireAfterWrite(cacheExpireAfterWrite, TimeUnit.SECONDS).recordStats()
+				.build(this::loadUserById);
+		this.emailCache = Caffeine.newBuilder().maximumSize(cacheMaximumSize)
+				.expireAfterWrite(cacheExpireAfterWrite, TimeUnit.SECONDS).recordStats()
+				.build(this::loadUserIdByEmail);
+	}
+
+	/**
+	 * 查询用户，用户不存在时抛出EmptyResultDataAccessException，不存在的结果不会被缓存
+	 * @param id
+	 * @return
+	 */
 	public User getUserById(long id) {
-		return jdbcTemplate.queryForObject("SELECT * FROM users WHERE id = ?", new Object[] { id }, userRowMapper);
+		return userCache.get(id);
+	}
+
+	/**
+	 * 异步查询用户，缓存命中时直接返回，不经过apiExecutor
+	 * @param id
+	 * @return 用户不存在时以EmptyResultDataAccessException结束
+	 */
+	public CompletableFuture<User> getUserByIdAsync(long id) {
+		User user = userCache.getIfPresent(id);
+		if (user != null) {
+			return CompletableFuture.completedFuture(user);
+		}
+		return supplyAsync(() -> getUserById(id));
 	}
 
 	public User getUserByEmail(String email) {
-		return jdbcTemplate.queryForObject("SELECT * FROM users WHERE email = ?", new Object[] { email },
-				userRowMapper);
+		return getUserById(emailCache.get(email));
 	}
 
+	private User loadUserById(Long id) {
+		return jdbcTemplate.queryForObject("SELECT * FROM users WHERE id = ?", new Object[] { id }, new UserRowMapper());
+	}
+
+	private Long loadUserIdByEmail(String email) {
+		return jdbcTemplate.queryForObject("SELECT id FROM users WHERE email = ?", new Object[] { email }, Long.class);
+	}
+
+	/**
+	 * @return 用户缓存和email缓存合计的统计数据
+	 */
+	public CacheStats getCacheStats() {
+		return userCache.stats().plus(emailCache.stats());
+	}
+
+	public long getCacheSize() {
+		return userCache.estimatedSize();
+	}
+
+	public void invalidateCache() {
+		userCache.invalidateAll();
+		emailCache.invalidateAll();
+	}
+
+	/**
+	 * 同步登录，在调用线程中等待signinExecutor的校验结果，供Filter和Interceptor中的Basic认证使用
+	 * @param email
+	 * @param password
+	 * @return
+	 * @throws RejectedExecutionException 校验排队已满
+	 */
 	public User signin(String email, String password) {
+		try {
+			return signinAsync(email, password).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("login interrupted.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * 异步登录，查询用户和校验密码都在signinExecutor中执行
+	 * @param email
+	 * @param password
+	 * @return 登录成功的用户；密码错误或用户不存在时以RuntimeException结束，
+	 *         排队已满时以RejectedExecutionException结束
+	 */
+	public CompletableFuture<User> signinAsync(String email, String password) {
 		logger.info("try login by {}...", email);
-		User user = getUserByEmail(email);
-		if (user.getPassword().equals(password)) {
-			return user;
+		long submitTime = System.nanoTime();
+		CompletableFuture<User> future = new CompletableFuture<>();
+		try {
+			signinExecutor.execute(() -> {
+				long startTime = System.nanoTime();
+				boolean success = false;
+				try {
+					User user;
+					try {
+						user = getUserByEmail(email);
+					} catch (EmptyResultDataAccessException e) {
+						// 用户不存在时同样计算一次哈希，并返回与密码错误相同的异常:
+						passwordHasher.matches(password, dummyPasswordHash);
+						throw new RuntimeException("login failed.");
+					}
+					if (!passwordHasher.matches(password, user.getPassword())) {
+						throw new RuntimeException("login failed.");
+					}
+					success = true;
+					future.complete(user);
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				} finally {
+					signinMBean.onComplete(startTime - submitTime, System.nanoTime() - startTime, success);
+				}
+			});
+			signinMBean.onSubmit();
+		} catch (RejectedExecutionException e) {
+			//TaskRejectedException也是RejectedExecutionException
+			signinMBean.onReject();
+			logger.warn("signin rejected, {} verifications queued.", signinExecutor.getThreadPoolExecutor().getQueue().size());
+			future.completeExceptionally(new RejectedExecutionException("too many signin requests.", e));
 		}
-		throw new RuntimeException("login failed.");
+		return future;
 	}
 
 	public User register(String email, String password, String name) {
 		logger.info("try register by {}...", email);
 		User user = new User();
 		user.setEmail(email);
-		user.setPassword(password);
+		user.setPassword(passwordHasher.hash(password));
 		user.setName(name);
 		user.setCreatedAt(System.currentTimeMillis());
 		KeyHolder holder = new GeneratedKeyHolder();
@@ -69,16 +254,97 @@ public class UserService {
 			throw new RuntimeException("Insert failed.");
 		}
 		user.setId(holder.getKey().longValue());
+		emailCache.invalidate(user.getEmail());
+		userCache.invalidate(user.getId());
 		return user;
 	}
 
 	public void updateUser(User user) {
-		if (1 != jdbcTemplate.update("UPDATE user SET name = ? WHERE id=?", user.getName(), user.getId())) {
-			throw new RuntimeException("User not found by id");
+		try {
+			if (1 != jdbcTemplate.update("UPDATE users SET name = ? WHERE id=?", user.getName(), user.getId())) {
+				throw new RuntimeException("User not found by id");
+			}
+		} finally {
+			userCache.invalidate(user.getId());
 		}
 	}
 
 	public List<User> getUsers() {
-		return jdbcTemplate.query("SELECT * FROM users", userRowMapper);
+		return readOnlyTransaction.execute((status) -> jdbcTemplate.query("SELECT * FROM users", new UserRowMapper()));
+	}
+
+	/**
+	 * 按id顺序逐行读取用户并交给callback处理，不在内存中保存整个结果集。
+	 * 使用keyset分页：只读取id大于after的用户，翻页时把上一页最后一个用户的id作为下一页的after，
+	 * 无论翻到第几页都走主键索引，不像OFFSET那样越往后越慢。
+	 * @param after 只读取id大于after的用户，null表示从第一个用户开始(id从0开始分配，不能用0代替)
+	 * @param limit 最多读取的行数，0表示不限制
+	 * @param callback 每读取一行调用一次
+	 */
+	public void streamUsers(Long after, int limit, UserCallback callback) {
+		String sql = "SELECT * FROM users" + (after != null ? " WHERE id > ?" : "") + " ORDER BY id" + (limit > 0 ? " LIMIT ?" : "");
+		UserRowMapper mapper = new UserRowMapper();
+		readOnlyTransaction.execute((status) -> {
+			jdbcTemplate.query((conn) -> {
+				PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				ps.setFetchSize(fetchSize);
+				int index = 1;
+				if (after != null) {
+					ps.setLong(index++, after);
+				}
+				if (limit > 0) {
+					ps.setInt(index, limit);
+				}
+				return ps;
+			}, (RowCallbackHandler) (rs) -> {
+				try {
+					callback.accept(mapper.mapRow(rs, rs.getRow()));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			return null;
+		});
+	}
+
+	/**
+	 * 在apiExecutor中执行streamUsers()，callback也在apiExecutor的线程中调用
+	 * @param after
+	 * @param limit
+	 * @param callback
+	 * @return callback抛出的IOException会被包装为UncheckedIOException
+	 */
+	public CompletableFuture<Void> streamUsersAsync(Long after, int limit, UserCallback callback) {
+		return supplyAsync(() -> {
+			streamUsers(after, limit, callback);
+			return null;
+		});
+	}
+
+	private <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+		long submitTime = System.nanoTime();
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			apiExecutor.execute(() -> {
+				long startTime = System.nanoTime();
+				try {
+					future.complete(task.get());
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				} finally {
+					apiExecutorMBean.onComplete(startTime - submitTime, System.nanoTime() - startTime);
+				}
+			});
+			apiExecutorMBean.onSubmit();
+		} catch (RejectedExecutionException e) {
+			apiExecutorMBean.onReject();
+			future.completeExceptionally(new RejectedExecutionException("too many requests.", e));
+		}
+		return future;
+	}
+
+	@FunctionalInterface
+	public interface UserCallback {
+		void accept(User user) throws IOException;
 	}
 }
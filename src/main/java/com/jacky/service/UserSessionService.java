@@ -0,0 +1,218 @@
+package com.jacky.service;
+
+import com.jacky.entity.User;
+import com.jacky.web.UserController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * @author jacky
+ * @time 2021-02-09 21:10
+ * @discription 登录用户的保存和读取，UserController、拦截器和聊天室握手都通过它获取当前用户
+ *              auth.session.stateless=false时和以前一样，把User保存在HttpSession的KEY_USER中；
+ *              auth.session.stateless=true时服务器不保存任何会话状态，登录后签发一个令牌：
+ *                  1）令牌内容是用户id和过期时间，共16字节，加上HMAC-SHA256签名，Base64URL编码后不到70个字符；
+ *                  2）浏览器通过HttpOnly的Cookie带回令牌，API客户端也可以放在Authorization: Bearer头中；
+ *                  3）校验只需重新计算签名，不查询任何存储，再按id从UserService的缓存中读取用户；
+ *                  4）所有节点配置相同的auth.token.secret，请求可以发往任意节点，不需要粘性会话，
+ *                     每个节点的内存也不再随在线用户数增长。
+ *              令牌无法在服务器端作废，退出登录只是删除Cookie，泄露的令牌在过期前仍然有效，因此有效期不宜过长。
+ *              同一请求中已经认证的用户(例如Basic认证)保存在request属性KEY_USER中，优先使用。
+ */
+@Component
+public class UserSessionService {
+
+    public static final String TOKEN_COOKIE = "AUTH_TOKEN";
+    static final String BEARER_PREFIX = "Bearer ";
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+    static final int MIN_SECRET_LENGTH = 32;
+
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    UserService userService;
+
+    @Value("${auth.session.stateless:false}")
+    boolean stateless;
+
+    @Value("${auth.token.secret:}")
+    String secret;
+
+    @Value("${auth.token.ttl:86400}")
+    long ttl;
+
+    @Value("${auth.token.secureCookie:false}")
+    boolean secureCookie;
+
+    private SecretKeySpec signingKey;
+
+    @PostConstruct
+    public void init() {
+        byte[] key;
+        if (secret.isEmpty()) {
+            key = new byte[MIN_SECRET_LENGTH];
+            new SecureRandom().nextBytes(key);
+            if (stateless) {
+                logger.warn("auth.token.secret is not set, tokens are signed with a random key and only valid on this node until restart.");
+            }
+        } else {
+            key = Base64.getDecoder().decode(secret);
+            if (key.length < MIN_SECRET_LENGTH) {
+                throw new IllegalStateException("auth.token.secret must be at least " + MIN_SECRET_LENGTH + " bytes.");
+            }
+        }
+        this.signingKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+    }
+
+    public boolean isStateless() {
+        return stateless;
+    }
+
+    /**
+     * @param request
+     * @return 当前登录的用户，未登录、令牌无效或已过期时返回null
+     */
+    public User getUser(HttpServletRequest request) {
+        User user = (User) request.getAttribute(UserController.KEY_USER);
+        if (user != null) {
+            return user;
+        }
+        if (!stateless) {
+            HttpSession session = request.getSession(false);
+            return session == null ? null : (User) session.getAttribute(UserController.KEY_USER);
+        }
+        Long id = verify(findToken(request));
+        if (id == null) {
+            return null;
+        }
+        try {
+            user = userService.getUserById(id);
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+        //同一请求中再次读取时不必重新校验:
+        request.setAttribute(UserController.KEY_USER, user);
+        return user;
+    }
+
+    /**
+     * 登录成功后保存用户：保存到HttpSession，或者通过Cookie发送令牌
+     * @param request
+     * @param response
+     * @param user
+     */
+    public void signin(HttpServletRequest request, HttpServletResponse response, User user) {
+        if (!stateless) {
+            request.getSession().setAttribute(UserController.KEY_USER, user);
+            return;
+        }
+        response.addCookie(createCookie(request, issue(user.getId()), (int) ttl));
+    }
+
+    public void signout(HttpServletRequest request, HttpServletResponse response) {
+        request.removeAttribute(UserController.KEY_USER);
+        if (!stateless) {
+            HttpSession session = request.getSession(false);
+            if (session != null) {
+                session.removeAttribute(UserController.KEY_USER);
+            }
+            return;
+        }
+        response.addCookie(createCookie(request, "", 0));
+    }
+
+    /**
+     * 签发令牌
+     * @param userId
+     * @return payload.signature，两部分都是不带填充的Base64URL
+     */
+    public String issue(long userId) {
+        byte[] payload = ByteBuffer.allocate(16).putLong(userId).putLong(System.currentTimeMillis() / 1000 + ttl).array();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+    }
+
+    /**
+     * 校验令牌
+     * @param token
+     * @return 令牌中的用户id，令牌为null、格式错误、签名不符或已过期时返回null
+     */
+    public Long verify(String token) {
+        if (token == null) {
+            return null;
+        }
+        int pos = token.indexOf('.');
+        if (pos < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(0, pos));
+            signature = Base64.getUrlDecoder().decode(token.substring(pos + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        //按固定时间比较，不会因为比较提前结束而泄露签名的内容:
+        if (payload.length != 16 || !MessageDigest.isEqual(sign(payload), signature)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long userId = buffer.getLong();
+        long expiresAt = buffer.getLong();
+        return expiresAt > System.currentTimeMillis() / 1000 ? userId : null;
+    }
+
+    private String findToken(HttpServletRequest request) {
+        String authHeader = request.getHeader("Authorization");
+        if (authHeader != null && authHeader.startsWith(BEARER_PREFIX)) {
+            return authHeader.substring(BEARER_PREFIX.length());
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (TOKEN_COOKIE.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    private Cookie createCookie(HttpServletRequest request, String value, int maxAge) {
+        Cookie cookie = new Cookie(TOKEN_COOKIE, value);
+        cookie.setPath(request.getContextPath().isEmpty() ? "/" : request.getContextPath());
+        cookie.setHttpOnly(true);
+        cookie.setSecure(secureCookie);
+        cookie.setMaxAge(maxAge);
+        return cookie;
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            // Mac不是线程安全的，每次创建一个:
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(signingKey);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
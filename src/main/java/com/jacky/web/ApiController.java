@@ -1,14 +1,38 @@
 package com.jacky.web;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.jacky.entity.User;
+import com.jacky.mbean.ApiExecutorMBean;
+import com.jacky.service.UserImportService;
 import com.jacky.service.UserService;
+import com.jacky.service.UserSessionService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author jacky
@@ -53,30 +77,216 @@ public class ApiController {
     @Autowired
     UserService userService;
 
+    @Autowired
+    UserSessionService userSessionService;
+
+    static final String NDJSON = "application/x-ndjson";
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    //每写一个用户都flush会产生大量小的网络包，由EmitterOutputStream按块发送
+    ObjectWriter userWriter;
+
+    static final int STREAM_CHUNK_SIZE = 8192;
+
+    @Autowired
+    ApiExecutorMBean apiExecutorMBean;
+
+    @Value("${api.async.timeout:10000}")
+    long asyncTimeout;
+
+    @Value("${api.async.streamTimeout:600000}")
+    long streamTimeout;
+
+    @PostConstruct
+    public void init() {
+        this.userWriter = objectMapper.writerFor(User.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * 用户列表，结果从ResultSet逐行直接写入响应，不会先把整张表读入一个List，内存占用与用户数无关。
+     *      /api/users                        所有用户，按id排序；
+     *      /api/users?after=100&limit=50     id大于100的50个用户(keyset分页)，下一页的after取本页最后一个用户的id；
+     * 默认输出JSON数组，请求头Accept: application/x-ndjson或参数format=ndjson时每行输出一个JSON对象。
+     * 查询和写出都在apiExecutor中进行，请求线程立即释放，结果通过ResponseBodyEmitter分块发送；
+     * apiExecutor排队已满时返回503。
+     * @param after 省略时从第一个用户开始，第一个用户的id是0
+     * @param limit
+     * @param format
+     * @param accept
+     * @return
+     */
     @GetMapping("/users")
-    public List<User> users(){
-        return userService.getUsers();
+    public ResponseEntity<ResponseBodyEmitter> users(@RequestParam(value = "after", required = false) Long after,
+                                                     @RequestParam(value = "limit", defaultValue = "0") int limit,
+                                                     @RequestParam(value = "format", required = false) String format,
+                                                     @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept)
+            throws IOException {
+        if (limit < 0) {
+            return emitError(HttpStatus.BAD_REQUEST, "BAD_REQUEST", "limit must not be negative");
+        }
+        boolean ndjson = "ndjson".equals(format) || (accept != null && accept.contains(NDJSON));
+        MediaType mediaType = MediaType.parseMediaType(ndjson ? NDJSON + ";charset=UTF-8" : "application/json;charset=UTF-8");
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(streamTimeout);
+        emitter.onTimeout(apiExecutorMBean::onTimeout);
+        // 在apiExecutor中写出之前不会发送任何数据，因此可以在这里先创建好:
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(
+                new EmitterOutputStream(emitter, mediaType, STREAM_CHUNK_SIZE));
+        if (ndjson) {
+            // 每个对象后面自己写换行，不要默认的空格分隔符:
+            generator.setRootValueSeparator(null);
+        } else {
+            generator.writeStartArray();
+        }
+        CompletableFuture<Void> future = userService.streamUsersAsync(after, limit, (user) -> {
+            userWriter.writeValue(generator, user);
+            if (ndjson) {
+                generator.writeRaw('\n');
+            }
+        });
+        if (isRejected(future)) {
+            return emitError(HttpStatus.SERVICE_UNAVAILABLE, "SERVER_BUSY", "too many requests, please retry later");
+        }
+        future.whenComplete((v, e) -> {
+            try {
+                if (e != null) {
+                    throw e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : e;
+                }
+                if (!ndjson) {
+                    generator.writeEndArray();
+                }
+                generator.close();
+                emitter.complete();
+            } catch (Throwable t) {
+                // 已经发送了部分内容，无法再修改状态码，只能中断响应:
+                emitter.completeWithError(t);
+            }
+        });
+        return ResponseEntity.ok().contentType(mediaType).body(emitter);
     }
 
+    @Autowired
+    UserImportService userImportService;
+
+    /**
+     * 批量导入用户，请求内容按需读取，不会整个读入内存：
+     *      Content-Type: application/json     [{"email":...,"password":...,"name":...}, ...]
+     *      Content-Type: text/csv             每行email,password,name
+     * 重复的email等冲突不会让导入失败，只在结果中按行号列出；请求内容无法解析时返回400，出错之前的行已经导入。
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    @PostMapping(value = "/users/import", consumes = { MediaType.APPLICATION_JSON_VALUE, "text/csv" })
+    public ResponseEntity<UserImportService.ImportResult> importUsers(HttpServletRequest request) throws IOException {
+        UserImportService.ImportResult result;
+        if (request.getContentType().startsWith("text/csv")) {
+            String charset = request.getCharacterEncoding() != null ? request.getCharacterEncoding() : StandardCharsets.UTF_8.name();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), charset))) {
+                result = userImportService.importUsers(new CsvUserIterator(reader));
+            }
+        } else {
+            // readValues()会逐个读取JSON数组中的元素:
+            try (MappingIterator<User> users = objectMapper.readerFor(User.class).readValues(request.getInputStream())) {
+                result = userImportService.importUsers(users);
+            }
+        }
+        return new ResponseEntity<>(result, result.error == null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * 在apiExecutor中查询用户，请求线程立即释放，排队已满返回503，超过api.async.timeout返回504。
+     * 用户不存在等其他异常和同步调用时一样处理。
+     */
     @GetMapping("/users/{id}")
-    public User user(@PathVariable("id") long id) {
-        return userService.getUserById(id);
+    public DeferredResult<User> user(@PathVariable("id") long id) {
+        return defer(userService.getUserByIdAsync(id));
     }
 
+    /**
+     * 返回DeferredResult后，请求线程立即释放，校验密码在signinExecutor中完成后再写响应；
+     * 校验排队已满时返回503，超时返回504。
+     */
     @PostMapping("/signin")
-    public Map<String, Object> signin(@RequestBody SignInRequest signinRequest) {
-        try {
-            User user = userService.signin(signinRequest.email, signinRequest.password);
-            Map<String, Object> model = new HashMap<>();
-            model.put("user", user);
-            return model;
-        } catch (Exception e) {
+    public DeferredResult<ResponseEntity<Map<String, Object>>> signin(@RequestBody SignInRequest signinRequest) {
+        return defer(userService.signinAsync(signinRequest.email, signinRequest.password).handle((user, e) -> {
+            if (e instanceof RejectedExecutionException) {
+                return error(HttpStatus.SERVICE_UNAVAILABLE, "SIGNIN_FAILED", e.getMessage());
+            }
             Map<String, Object> model = new HashMap<>();
-            model.put("error", "SIGNIN_FAILED");
-            model.put("message", e.getMessage());
-            return model;
+            if (e == null) {
+                model.put("user", user);
+                if (userSessionService.isStateless()) {
+                    // API客户端在之后的请求中通过Authorization: Bearer带上令牌:
+                    model.put("token", userSessionService.issue(user.getId()));
+                }
+            } else {
+                model.put("error", "SIGNIN_FAILED");
+                model.put("message", e.getMessage());
+            }
+            return ResponseEntity.ok(model);
+        }));
+    }
+
+    /**
+     * 把CompletableFuture转换为DeferredResult：
+     *      apiExecutor或signinExecutor排队已满(RejectedExecutionException)：503，带Retry-After；
+     *      超过api.async.timeout仍未完成：504；
+     *      其他异常交给Spring MVC按同步调用时的方式处理。
+     */
+    private <T> DeferredResult<T> defer(CompletableFuture<T> future) {
+        DeferredResult<T> result = new DeferredResult<>(asyncTimeout);
+        result.onTimeout(() -> {
+            apiExecutorMBean.onTimeout();
+            result.setErrorResult(error(HttpStatus.GATEWAY_TIMEOUT, "TIMEOUT", "request timed out"));
+        });
+        future.whenComplete((value, e) -> {
+            if (e == null) {
+                result.setResult(value);
+            } else if (e instanceof RejectedExecutionException) {
+                result.setErrorResult(error(HttpStatus.SERVICE_UNAVAILABLE, "SERVER_BUSY", "too many requests, please retry later"));
+            } else {
+                result.setErrorResult(e);
+            }
+        });
+        return result;
+    }
+
+    private static boolean isRejected(CompletableFuture<?> future) {
+        if (!future.isCompletedExceptionally()) {
+            return false;
         }
+        try {
+            future.join();
+            return false;
+        } catch (CompletionException e) {
+            return e.getCause() instanceof RejectedExecutionException;
+        }
+    }
+
+    private static ResponseEntity<Map<String, Object>> error(HttpStatus status, String error, String message) {
+        Map<String, Object> model = new HashMap<>();
+        model.put("error", error);
+        model.put("message", message);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status);
+        if (status == HttpStatus.SERVICE_UNAVAILABLE) {
+            builder.header(HttpHeaders.RETRY_AFTER, "1");
+        }
+        return builder.body(model);
+    }
+
+    /**
+     * 返回类型是ResponseBodyEmitter的方法出错时，用一个只包含错误信息的emitter作为响应内容
+     */
+    private ResponseEntity<ResponseBodyEmitter> emitError(HttpStatus status, String error, String message) throws IOException {
+        ResponseEntity<Map<String, Object>> entity = error(status, error, message);
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter();
+        emitter.send(objectMapper.writeValueAsBytes(entity.getBody()), MediaType.APPLICATION_JSON);
+        emitter.complete();
+        return ResponseEntity.status(status).headers(entity.getHeaders()).contentType(MediaType.APPLICATION_JSON).body(emitter);
     }
+
     public static class SignInRequest {
         public String email;
         public String password;
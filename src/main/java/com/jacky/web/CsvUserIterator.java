@@ -0,0 +1,101 @@
+package com.jacky.web;
+
+import com.jacky.entity.User;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * @author jacky
+ * @time 2021-01-31 15:10
+ * @discription 逐行读取CSV格式的用户，每行email,password,name三列，
+ *              第一行如果以email开头则当作标题行跳过；字段可以用双引号括起来，引号内的""表示一个引号。
+ *              列数不对的行返回缺少字段的User，由导入时的校验记为冲突。
+ */
+class CsvUserIterator implements Iterator<User> {
+
+    private final BufferedReader reader;
+    private String next;
+    private boolean first = true;
+
+    CsvUserIterator(BufferedReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (first) {
+                    first = false;
+                    // 不区分大小写，也不受默认Locale影响(土耳其语环境下"EMAIL"小写是"emaıl"):
+                    if (line.trim().regionMatches(true, 0, "email", 0, 5)) {
+                        continue;
+                    }
+                }
+                if (!line.trim().isEmpty()) {
+                    next = line;
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public User next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<String> fields = split(next);
+        next = null;
+        User user = new User();
+        if (fields.size() == 3) {
+            user.setEmail(fields.get(0).trim());
+            user.setPassword(fields.get(1));
+            user.setName(fields.get(2).trim());
+        }
+        return user;
+    }
+
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        sb.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    sb.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString());
+        return fields;
+    }
+}
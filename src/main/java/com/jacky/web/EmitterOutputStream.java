@@ -0,0 +1,72 @@
+package com.jacky.web;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * @author jacky
+ * @time 2021-02-05 21:30
+ * @discription 把写入的字节通过ResponseBodyEmitter发送的OutputStream
+ *              ResponseBodyEmitter每次send()都会flush，逐个用户发送会产生大量小的网络包，
+ *              因此先写入缓冲区，满bufferSize字节或flush()/close()时再发送一次。
+ *              请求已超时或已结束后send()抛出的IllegalStateException转为IOException，写入方据此停止。
+ */
+class EmitterOutputStream extends OutputStream {
+
+    private final ResponseBodyEmitter emitter;
+    private final MediaType mediaType;
+    private final byte[] buffer;
+    private int count;
+
+    EmitterOutputStream(ResponseBodyEmitter emitter, MediaType mediaType, int bufferSize) {
+        this.emitter = emitter;
+        this.mediaType = mediaType;
+        this.buffer = new byte[bufferSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flush();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) {
+                flush();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        //send()可能在其他线程中写出，因此发送缓冲区的副本
+        byte[] chunk = Arrays.copyOf(buffer, count);
+        count = 0;
+        try {
+            emitter.send(chunk, mediaType);
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
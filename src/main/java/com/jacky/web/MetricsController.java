@@ -0,0 +1,37 @@
+package com.jacky.web;
+
+import com.jacky.jdbc.PoolMetrics;
+import com.jacky.jdbc.SqlMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * @author jacky
+ * @time 2021-02-02 21:40
+ * @discription 以Prometheus文本格式输出运行指标，供监控系统定期抓取。
+ */
+@Controller
+public class MetricsController {
+
+    static final String CONTENT_TYPE = "text/plain;version=0.0.4;charset=UTF-8";
+
+    @Autowired
+    SqlMetrics sqlMetrics;
+
+    @Autowired
+    PoolMetrics poolMetrics;
+
+    @GetMapping("/metrics")
+    public void metrics(HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        Writer writer = response.getWriter();
+        sqlMetrics.writeText(writer);
+        poolMetrics.writeText(writer);
+        writer.flush();
+    }
+}
@@ -3,6 +3,7 @@ package com.jacky.web;
 import com.jacky.entity.User;
 import com.jacky.service.MailService;
 import com.jacky.service.UserService;
+import com.jacky.service.UserSessionService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,10 +13,15 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.view.RedirectView;
 
-import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author jacky
@@ -46,6 +52,9 @@ public class UserController {
     @Autowired
     MailService mailService;
 
+    @Autowired
+    UserSessionService userSessionService;
+
     /**
      * 在Controller中，Spring MVC还允许定义基于@ExceptionHandler注解的异常处理方法。
      * 异常处理方法没有固定的方法签名，可以传入Exception、HttpServletRequest等，返回值可以是void，也可以是ModelAndView，
@@ -77,8 +86,8 @@ public class UserController {
     }
 
     @GetMapping("/")
-    public ModelAndView index(HttpSession session) {
-        User user = (User) session.getAttribute(KEY_USER);
+    public ModelAndView index(HttpServletRequest request) {
+        User user = userSessionService.getUser(request);
         Map<String, Object> model = new HashMap<>();
         if (user != null) {
             model.put("user", model);
@@ -108,8 +117,8 @@ public class UserController {
     }
 
     @GetMapping("/signin")
-    public ModelAndView signin(HttpSession session) {
-        User user = (User) session.getAttribute(KEY_USER);
+    public ModelAndView signin(HttpServletRequest request) {
+        User user = userSessionService.getUser(request);
         if (user != null) {
             return new ModelAndView("redirect:/profile");
         }
@@ -117,23 +126,34 @@ public class UserController {
     }
 
     @PostMapping("/signin")
-    public ModelAndView doSignin(@RequestParam("email") String email, @RequestParam("password") String password,
-                                 HttpSession session) {
-        try {
-            User user = userService.signin(email, password);
-            session.setAttribute(KEY_USER, user);
-        } catch (RuntimeException e) {
-            Map<String, Object> model = new HashMap<>();
-            model.put("email", email);
-            model.put("error", "Signin failed");
-            return new ModelAndView("signin.html", model);
-        }
-        return new ModelAndView("redirect:/profile");
+    public CompletableFuture<ModelAndView> doSignin(@RequestParam("email") String email, @RequestParam("password") String password,
+                                 HttpServletRequest request, HttpServletResponse response) {
+        return userService.signinAsync(email, password).handle((user, e) -> {
+            if (e != null) {
+                Map<String, Object> model = new HashMap<>();
+                model.put("email", email);
+                model.put("error", e instanceof RejectedExecutionException ? "Server busy, please try again later" : "Signin failed");
+                return new ModelAndView("signin.html", model);
+            }
+            return new ModelAndView(signinView(user));
+        });
+    }
+
+    /**
+     * handle()运行在signinExecutor的线程上，不能在这里创建HttpSession或写Cookie；
+     * 返回的View在异步分派回容器线程后才渲染，此时再保存登录状态并重定向
+     */
+    private View signinView(User user) {
+        RedirectView redirect = new RedirectView("/profile", true);
+        return (model, request, response) -> {
+            userSessionService.signin(request, response, user);
+            redirect.render(model, request, response);
+        };
     }
 
     @GetMapping("/profile")
-    public ModelAndView profile(HttpSession session) {
-        User user = (User) session.getAttribute(KEY_USER);
+    public ModelAndView profile(HttpServletRequest request) {
+        User user = userSessionService.getUser(request);
         if (user == null) {
             return new ModelAndView("redirect:/signin");
         }
@@ -143,8 +163,8 @@ public class UserController {
     }
 
     @GetMapping("/signout")
-    public String signout(HttpSession session) {
-        session.removeAttribute(KEY_USER);
+    public String signout(HttpServletRequest request, HttpServletResponse response) {
+        userSessionService.signout(request, response);
         return "redirect:/signin";
     }
 }
@@ -0,0 +1,144 @@
+package com.jacky.webSocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
+import org.springframework.jms.config.SimpleJmsListenerEndpoint;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.listener.DefaultMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * @author jacky
+ * @time 2021-01-23 15:40
+ * @discription 多个节点之间转发聊天消息
+ *              负载均衡后面有多个Tomcat节点时，每个节点只持有连接到自己的WebSocket会话，
+ *              用户连接到不同节点就看不到彼此的消息。
+ *              启用后，每条聊天消息在本节点广播的同时，发布一次到JMS的Topic，
+ *              其他节点订阅该Topic，收到后再广播给各自本地的会话：
+ *                  1）每个节点有唯一的nodeId，写在消息属性里，订阅时用消息选择器过滤掉自己发出的消息；
+ *                  2）发送使用chatRelayJmsTemplate，它缓存了JMS连接和Producer，不会每条消息都新建连接；
+ *                  3）订阅使用WebConfig中的jmsListenerContainerFactory创建的监听容器。
+ *              所有节点的jms.uri必须指向同一个Artemis服务器(或集群)，本项目不内嵌Artemis服务器；
+ *              ChatClusterRelayTest在测试中启动嵌入式服务器(vm://0)，检查两个节点之间的转发。
+ */
+@Component
+public class ChatClusterRelay {
+
+    static final String PROPERTY_NODE = "chatNode";
+    static final String PROPERTY_ROOM = "chatRoom";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    //本节点的唯一标识，用于过滤自己发出的消息
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Value("${chat.cluster.enabled:false}")
+    boolean enabled;
+
+    @Value("${chat.cluster.topic:jms/topic/chat}")
+    String topic;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    ChatRoomRegistry chatRoomRegistry;
+
+    @Autowired
+    @Qualifier("chatRelayJmsTemplate")
+    JmsTemplate chatRelayJmsTemplate;
+
+    @Autowired
+    @Qualifier("jmsListenerContainerFactory")
+    DefaultJmsListenerContainerFactory jmsListenerContainerFactory;
+
+    DefaultMessageListenerContainer container;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        SimpleJmsListenerEndpoint endpoint = new SimpleJmsListenerEndpoint();
+        endpoint.setId("chatClusterRelay");
+        endpoint.setDestination(topic);
+        endpoint.setSelector(PROPERTY_NODE + " <> '" + nodeId + "'");
+        endpoint.setMessageListener(this::onRelayMessage);
+        this.container = jmsListenerContainerFactory.createListenerContainer(endpoint);
+        // 同一个jmsListenerContainerFactory也用于Queue，这里单独把容器切换为Topic模式:
+        this.container.setPubSubDomain(true);
+        this.container.afterPropertiesSet();
+        this.container.start();
+        logger.info("chat cluster relay started: node = {}, topic = {}", nodeId, topic);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (this.container != null) {
+            this.container.destroy();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 把本节点产生的消息发布给其他节点
+     * @param room 聊天室名称
+     * @param chatMessage 消息
+     */
+    public void relay(String room, ChatMessage chatMessage) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            String text = objectMapper.writeValueAsString(chatMessage);
+            chatRelayJmsTemplate.send(topic, session -> {
+                TextMessage message = session.createTextMessage(text);
+                message.setStringProperty(PROPERTY_NODE, nodeId);
+                message.setStringProperty(PROPERTY_ROOM, room);
+                return message;
+            });
+        } catch (Exception e) {
+            logger.warn("relay chat message to cluster failed.", e);
+        }
+    }
+
+    /**
+     * 收到其他节点的消息，保存到本节点的历史消息并广播给本地会话，不再转发
+     * @param message
+     */
+    void onRelayMessage(Message message) {
+        try {
+            if (!(message instanceof TextMessage)) {
+                logger.error("unable to process non-text chat relay message!");
+                return;
+            }
+            if (nodeId.equals(message.getStringProperty(PROPERTY_NODE))) {
+                return;
+            }
+            ChatMessage chatMessage = objectMapper.readValue(((TextMessage) message).getText(), ChatMessage.class);
+            chatRoomRegistry.publish(message.getStringProperty(PROPERTY_ROOM), chatMessage);
+        } catch (JMSException | IOException e) {
+            logger.warn("process chat relay message failed.", e);
+        }
+    }
+}
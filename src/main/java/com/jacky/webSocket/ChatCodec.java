@@ -0,0 +1,123 @@
+package com.jacky.webSocket;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author jacky
+ * @time 2021-01-25 20:40
+ * @discription 聊天室的编解码
+ *              客户端在握手时通过Sec-WebSocket-Protocol协商子协议：
+ *                  chat.json：文本帧，内容是JSON，也是未协商子协议的老客户端使用的格式；
+ *                  chat.cbor：二进制帧，内容是CBOR，字段结构与JSON相同，但编码更紧凑，解析更快，适合移动端。
+ *              CBOR编码使用单独的ObjectMapper，不注册为Bean，避免和全局的JSON ObjectMapper冲突。
+ *              客户端发来的消息只有ChatText一种类型，解码使用预先创建的ObjectReader，
+ *              不必每次readValue()时再按类型查找反序列化器。ObjectReader是不可变的，可以被多个线程共用。
+ */
+@Component
+public class ChatCodec {
+
+    public static final String PROTOCOL_JSON = "chat.json";
+    public static final String PROTOCOL_CBOR = "chat.cbor";
+
+    public enum Format {
+        JSON, CBOR
+    }
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory())
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private ObjectReader jsonReader;
+    private ObjectReader cborReader;
+
+    @PostConstruct
+    public void init() {
+        this.jsonReader = objectMapper.readerFor(ChatText.class);
+        this.cborReader = cborMapper.readerFor(ChatText.class);
+    }
+
+    /**
+     * @return 支持的子协议，按优先顺序排列
+     */
+    public List<String> getSubProtocols() {
+        return Arrays.asList(PROTOCOL_CBOR, PROTOCOL_JSON);
+    }
+
+    /**
+     * 根据握手时协商的子协议确定会话使用的格式
+     * @param session
+     * @return
+     */
+    public Format formatOf(WebSocketSession session) {
+        return PROTOCOL_CBOR.equals(session.getAcceptedProtocol()) ? Format.CBOR : Format.JSON;
+    }
+
+    /**
+     * 按指定格式编码为一帧
+     * @param value
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    public WebSocketMessage<?> encode(Object value, Format format) throws IOException {
+        if (format == Format.CBOR) {
+            return new BinaryMessage(cborMapper.writeValueAsBytes(value));
+        }
+        //直接序列化为UTF-8字节，TextMessage会保存这份字节，发送时无需再次编码
+        return new TextMessage(objectMapper.writeValueAsBytes(value));
+    }
+
+    /**
+     * 启动预热时调用：按两种格式编码一条消息再解码，提前构造各自的序列化器和反序列化器
+     * @param message
+     * @throws IOException
+     */
+    public void warmUp(ChatMessage message) throws IOException {
+        for (Format format : Format.values()) {
+            WebSocketMessage<?> frame = encode(message, format);
+            if (frame instanceof BinaryMessage) {
+                decode((BinaryMessage) frame);
+            } else {
+                decode((TextMessage) frame);
+            }
+        }
+    }
+
+    /**
+     * 解码客户端发来的文本帧
+     */
+    ChatText decode(TextMessage message) throws IOException {
+        return jsonReader.readValue(message.getPayload());
+    }
+
+    /**
+     * 解码客户端发来的二进制帧
+     */
+    ChatText decode(BinaryMessage message) throws IOException {
+        ByteBuffer payload = message.getPayload();
+        if (payload.hasArray()) {
+            return cborReader.readValue(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        }
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        return cborReader.readValue(data);
+    }
+}
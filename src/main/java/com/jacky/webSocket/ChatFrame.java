@@ -0,0 +1,46 @@
+package com.jacky.webSocket;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author jacky
+ * @time 2021-01-25 21:10
+ * @discription 一个待发送的帧
+ *              同一份内容要发给使用不同格式的会话，每种格式只在第一次需要时编码一次，
+ *              之后所有相同格式的会话共用同一个WebSocketMessage。
+ */
+public class ChatFrame {
+
+    private final Object value;
+    private final ChatCodec codec;
+    private final AtomicReferenceArray<WebSocketMessage<?>> encoded = new AtomicReferenceArray<>(ChatCodec.Format.values().length);
+
+    public ChatFrame(Object value, ChatCodec codec) {
+        this.value = value;
+        this.codec = codec;
+    }
+
+    /**
+     * 获取指定格式编码后的帧
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    public WebSocketMessage<?> get(ChatCodec.Format format) throws IOException {
+        int i = format.ordinal();
+        WebSocketMessage<?> message = this.encoded.get(i);
+        if (message == null) {
+            synchronized (this) {
+                message = this.encoded.get(i);
+                if (message == null) {
+                    message = codec.encode(value, format);
+                    this.encoded.set(i, message);
+                }
+            }
+        }
+        return message;
+    }
+}
@@ -1,22 +1,24 @@
 package com.jacky.webSocket;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jacky.entity.User;
+import com.jacky.mbean.ChatMBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
 import java.io.IOException;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -25,21 +27,61 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @discription 和处理普通HTTP请求不同，没法用一个方法处理一个URL。
  *  Spring提供了TextWebSocketHandler和BinaryWebSocketHandler分别处理文本消息和二进制消息，
  *  这里我们选择文本消息作为聊天室的协议
+ *
+ *  为了让移动端使用更紧凑的二进制格式，改为继承AbstractWebSocketHandler同时处理文本和二进制消息，
+ *  并实现SubProtocolCapable，握手时通过子协议协商使用JSON文本帧还是CBOR二进制帧，详见ChatCodec。
  */
 @Component
-public class ChatHandler extends TextWebSocketHandler {
+public class ChatHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
-    ChatHistory chatHistory;
+    ChatRoomRegistry chatRoomRegistry;
 
     @Autowired
-    ObjectMapper objectMapper;
+    ChatClusterRelay chatClusterRelay;
 
-    //保存所有Client的WebSocket会话实例
-    //用实例变量clients持有当前所有的WebSocketSession是为了广播，即向所有用户推送同一消息。
-    private Map<String, WebSocketSession> clients = new ConcurrentHashMap<>();
+    @Autowired
+    ChatCodec chatCodec;
+
+    @Autowired
+    ChatHeartbeat chatHeartbeat;
+
+    @Autowired
+    ChatMBean chatMBean;
+
+    //发送消息的共享线程池，每个会话的发送队列都在这里被依次写出
+    @Autowired
+    @Qualifier("chatSendExecutor")
+    Executor chatSendExecutor;
+
+    //每个会话发送队列中允许积压的最大字节数
+    @Value("${chat.send.bufferSizeLimit:524288}")
+    int sendBufferSizeLimit;
+
+    //单次发送允许的最长时间(毫秒)
+    @Value("${chat.send.timeLimit:10000}")
+    long sendTimeLimit;
+
+    //每个会话每秒允许发送的消息数
+    @Value("${chat.inbound.rate:5}")
+    double inboundRate;
+
+    //每个会话允许的突发消息数
+    @Value("${chat.inbound.burst:10}")
+    int inboundBurst;
+
+    //客户端发来的一帧的最大长度，超过的不解析，直接丢弃
+    @Value("${chat.inbound.maxFrameLength:4096}")
+    int maxFrameLength;
+
+    //分页读取更早的消息时每页的条数
+    @Value("${chat.log.pageSize:50}")
+    int pageSize;
+
+    //会话不再保存在一个全局的Map中，而是按聊天室分片保存在各个ChatRoom里，
+    //广播时只需遍历本聊天室的会话。
 
     /**
      * 当浏览器请求一个WebSocket连接后，如果成功建立连接，Spring会自动调用afterConnectionEstablished()方法
@@ -56,7 +98,21 @@ public class ChatHandler extends TextWebSocketHandler {
         session.getAttributes().put("name", "Guest1");
         //super.afterConnectionEstablished(session);
         */
-        clients.put(session.getId(), session);
+        // 聊天室在握手时由ChatHandshakeInterceptor确定:
+        String roomName = (String) session.getAttributes().get(ChatHandshakeInterceptor.KEY_ROOM);
+        ChatSession chatSession = new ChatSession(session, chatCodec.formatOf(session), chatSendExecutor,
+                sendBufferSizeLimit, sendTimeLimit, new TokenBucket(inboundRate, inboundBurst));
+        // 新用户先收到历史消息帧，重连的用户只补发缺失的消息，since为空时等待客户端在第一帧中发送since:
+        String since = (String) session.getAttributes().get(ChatHandshakeInterceptor.KEY_SINCE);
+        String epoch = (String) session.getAttributes().get(ChatHandshakeInterceptor.KEY_EPOCH);
+        ChatRoom room = chatRoomRegistry.joinRoom(roomName != null ? roomName : ChatRoomRegistry.DEFAULT_ROOM,
+                r -> since != null && since.isEmpty() ? r.joinUnsynced(chatSession)
+                        : r.join(chatSession, since != null ? Long.valueOf(since) : null, epoch));
+        if (room == null) {
+            logger.warn("websocket connection rejected: id = {}, invalid room = {}", session.getId(), roomName);
+            session.close(CloseStatus.POLICY_VIOLATION);
+            return;
+        }
         String name = null;
         User user = (User) session.getAttributes().get("__user__");
         if (user != null) {
@@ -65,14 +121,11 @@ public class ChatHandler extends TextWebSocketHandler {
             name = initGuestName();
         }
         session.getAttributes().put("name", name);
-        logger.info("websocket connection established: id = {}, name = {}", session.getId(), name);
-        // 把历史消息发给新用户:
-        List<ChatMessage> list = chatHistory.getHistory();
-        session.sendMessage(toTextMessage(list));
+        logger.info("websocket connection established: id = {}, name = {}, room = {}, format = {}", session.getId(), name,
+                room.getName(), chatSession.getFormat());
         // 添加系统消息并广播:
         ChatMessage msg = new ChatMessage("SYSTEM MESSAGE", name + " joined the room.");
-        chatHistory.addToHistory(msg);
-        broadcastMessage(msg);
+        publish(room, msg);
     }
 
     /**
@@ -83,7 +136,13 @@ public class ChatHandler extends TextWebSocketHandler {
      */
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-        clients.remove(session.getId());
+        ChatRoom room = getRoom(session);
+        if (room != null) {
+            ChatSession chatSession = room.leave(session.getId());
+            if (chatSession != null) {
+                chatSession.close(status);
+            }
+        }
         logger.info("websocket connection closed: id = {}, close-status = {}", session.getId(), status);
     }
 
@@ -94,8 +153,8 @@ public class ChatHandler extends TextWebSocketHandler {
     }
 
     /**
-     * 每收到一个用户的消息后，我们就需要广播给所有用户;
-     * 如果要推送给指定的几个用户，那就需要在clients中根据条件查找出某些WebSocketSession，然后发送消息。
+     * 每收到一个用户的消息后，我们就需要广播给同一聊天室的所有用户;
+     * 如果要推送给指定的几个用户，那就需要在ChatRoom中根据条件查找出某些ChatSession，然后发送消息。
      * @param session
      * @param message
      * @throws Exception
@@ -106,31 +165,138 @@ public class ChatHandler extends TextWebSocketHandler {
         if (s.isEmpty()){
             return;
         }
+        // maxFrameLength是UTF-8字节数，按字节数检查，不分配编码后的字节数组:
+        if (!accept(session, utf8Length(s))) {
+            return;
+        }
+        handleChatText(session, chatCodec.decode(message));
+    }
+
+    /**
+     * 计算字符串按UTF-8编码后的字节数
+     */
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // 代理对是一个4字节的字符:
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 使用chat.cbor子协议的客户端发来的二进制消息，内容与文本消息相同，只是编码为CBOR
+     * @param session
+     * @param message
+     * @throws Exception
+     */
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        if (message.getPayloadLength() == 0) {
+            return;
+        }
+        if (!accept(session, message.getPayloadLength())) {
+            return;
+        }
+        handleChatText(session, chatCodec.decode(message));
+    }
+
+    /**
+     * 在解析之前检查长度和限速，不合格的帧直接丢弃，不做解析，也不会被广播
+     * @param session
+     * @param length 帧的长度
+     * @return 是否接受该帧
+     */
+    private boolean accept(WebSocketSession session, int length) {
+        if (length > maxFrameLength) {
+            chatMBean.onOversized();
+            logger.warn("drop oversized frame from websocket session {}: {} > {}", session.getId(), length, maxFrameLength);
+            return false;
+        }
+        ChatRoom room = getRoom(session);
+        ChatSession chatSession = room != null ? room.getSubscriber(session.getId()) : null;
+        if (chatSession == null) {
+            return false;
+        }
+        if (!chatSession.tryReceive()) {
+            chatMBean.onThrottled();
+            logger.debug("drop throttled frame from websocket session {}", session.getId());
+            return false;
+        }
+        return true;
+    }
+
+    private void handleChatText(WebSocketSession session, ChatText chat) throws IOException {
+        ChatRoom room = getRoom(session);
+        if (room == null) {
+            return;
+        }
         String name = (String) session.getAttributes().get("name");
-        ChatText chat = objectMapper.readValue(s, ChatText.class);
+        if (chat.since != null) {
+            // 重连同步请求，只回复给请求者:
+            ChatSession chatSession = room.getSubscriber(session.getId());
+            if (chatSession != null) {
+                room.sync(chatSession, chat.since, chat.epoch);
+            }
+            return;
+        }
+        if (chat.before != null) {
+            // 分页请求，只回复给请求者:
+            ChatSession chatSession = room.getSubscriber(session.getId());
+            if (chatSession != null) {
+                chatSession.send(room.getPageFrame(chat.before, pageSize));
+            }
+            return;
+        }
         ChatMessage msg = new ChatMessage(name, chat.text);
-        chatHistory.addToHistory(msg);
-        broadcastMessage(msg);
+        publish(room, msg);
     }
 
     /**
-     * 广播消息
-     * @param chatMessage
+     * 在本节点的聊天室中保存并广播，再转发给集群中的其他节点
+     * @param room
+     * @param msg
      * @throws IOException
      */
-    public void broadcastMessage(ChatMessage chatMessage) throws IOException{
-        TextMessage message = toTextMessage(Collections.singletonList(chatMessage));
-        for (String id : clients.keySet()){
-            WebSocketSession session = clients.get(id);
-            session.sendMessage(message);
+    private void publish(ChatRoom room, ChatMessage msg) throws IOException {
+        // 发送者仍在聊天室中，聊天室不会被关闭:
+        if (room.publish(msg)) {
+            chatClusterRelay.relay(room.getName(), msg);
         }
     }
 
-    private TextMessage toTextMessage(List<ChatMessage> messages) throws IOException {
-        String json = objectMapper.writeValueAsString(messages);
-        return new TextMessage(json);
+    private ChatRoom getRoom(WebSocketSession session) {
+        String roomName = (String) session.getAttributes().get(ChatHandshakeInterceptor.KEY_ROOM);
+        return chatRoomRegistry.getRoom(roomName != null ? roomName : ChatRoomRegistry.DEFAULT_ROOM);
     }
 
+    /**
+     * 客户端回复ChatHeartbeat发出的Ping
+     * @param session
+     * @param message
+     * @throws Exception
+     */
+    @Override
     protected void handlePongMessage(WebSocketSession session, PongMessage message) throws Exception {
+        ChatRoom room = getRoom(session);
+        ChatSession chatSession = room != null ? room.getSubscriber(session.getId()) : null;
+        if (chatSession != null) {
+            chatHeartbeat.onPong(chatSession.onPong(message));
+        }
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return chatCodec.getSubProtocols();
     }
 }
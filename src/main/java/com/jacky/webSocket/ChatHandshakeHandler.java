@@ -0,0 +1,43 @@
+package com.jacky.webSocket;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author jacky
+ * @time 2021-01-25 22:05
+ * @discription 聊天室的握手处理
+ *              Tomcat内置支持permessage-deflate扩展，客户端在握手时请求该扩展即可对每条消息压缩，
+ *              是否压缩由每个连接单独协商，不支持压缩的老客户端不受影响。
+ *              压缩会增加CPU开销，可以通过chat.compression.enabled=false在服务器端关闭。
+ */
+@Component
+public class ChatHandshakeHandler extends DefaultHandshakeHandler {
+
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    @Value("${chat.compression.enabled:true}")
+    boolean compressionEnabled;
+
+    @Override
+    protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request,
+            List<WebSocketExtension> requestedExtensions, List<WebSocketExtension> supportedExtensions) {
+        List<WebSocketExtension> extensions = super.filterRequestedExtensions(request, requestedExtensions, supportedExtensions);
+        if (compressionEnabled) {
+            return extensions;
+        }
+        List<WebSocketExtension> result = new ArrayList<>(extensions.size());
+        for (WebSocketExtension extension : extensions) {
+            if (!PERMESSAGE_DEFLATE.equalsIgnoreCase(extension.getName())) {
+                result.add(extension);
+            }
+        }
+        return result;
+    }
+}
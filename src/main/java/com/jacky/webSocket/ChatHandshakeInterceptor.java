@@ -1,10 +1,21 @@
 package com.jacky.webSocket;
 
+import com.jacky.entity.User;
+import com.jacky.service.UserSessionService;
 import com.jacky.web.UserController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import javax.annotation.PostConstruct;
 import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author jacky
@@ -13,12 +24,89 @@ import java.util.Collections;
  *             这个类实际上可以从HttpSessionHandshakeInterceptor继承，
  *             它的主要作用是在WebSocket建立连接后，把HttpSession的一些属性复制到WebSocketSession，例如，用户的登录信息等：
  *             这样，在ChatHandler中，可以从WebSocketSession.getAttributes()中获取到复制过来的属性。
+ *             auth.session.stateless=true时没有HttpSession，改为由UserSessionService校验Cookie中的令牌得到用户。
+ *
+ *             此外，握手时根据URL确定要进入的聊天室，支持/chat/{room}和/chat?room={room}两种写法，
+ *             未指定时进入默认聊天室。
+ *             重连的客户端可以用?since={seq}&epoch={epoch}带上已收到的最后一条消息的序号和同步帧中的epoch，只补发缺失的消息；
+ *             epoch与当前聊天室不一致(例如重连到了集群中的其他节点)时补发完整的历史消息。
  */
 @Component
 public class ChatHandshakeInterceptor extends HttpSessionHandshakeInterceptor {
 
+    public static final String KEY_ROOM = "__room__";
+    //重连时客户端已收到的最后一条消息的序号，空字符串表示客户端将在第一帧中发送
+    public static final String KEY_SINCE = "__since__";
+    //since所属的序号空间
+    public static final String KEY_EPOCH = "__epoch__";
+
+    @Autowired
+    UserSessionService userSessionService;
+
     //// 指定从HttpSession复制属性到WebSocketSession:
     public ChatHandshakeInterceptor() {
         super(Collections.singletonList(UserController.KEY_USER));
     }
+
+    // 父类默认在握手时创建HttpSession，无状态模式下不应创建:
+    @PostConstruct
+    public void init() {
+        setCreateSession(!userSessionService.isStateless());
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                                   Map<String, Object> attributes) throws Exception {
+        String room = resolveRoom(request);
+        if (!ChatRoomRegistry.isValidName(room)) {
+            response.setStatusCode(HttpStatus.BAD_REQUEST);
+            return false;
+        }
+        attributes.put(KEY_ROOM, room);
+        String since = UriComponentsBuilder.fromUri(request.getURI()).build().getQueryParams().getFirst("since");
+        if (since != null) {
+            if (!since.isEmpty() && !isLong(since)) {
+                response.setStatusCode(HttpStatus.BAD_REQUEST);
+                return false;
+            }
+            attributes.put(KEY_SINCE, since);
+            String epoch = UriComponentsBuilder.fromUri(request.getURI()).build().getQueryParams().getFirst("epoch");
+            if (epoch != null) {
+                attributes.put(KEY_EPOCH, epoch);
+            }
+        }
+        if (!super.beforeHandshake(request, response, wsHandler, attributes)) {
+            return false;
+        }
+        // 无状态模式下没有HttpSession，从握手请求带来的令牌中读取用户:
+        if (userSessionService.isStateless() && request instanceof ServletServerHttpRequest) {
+            User user = userSessionService.getUser(((ServletServerHttpRequest) request).getServletRequest());
+            if (user != null) {
+                attributes.put(UserController.KEY_USER, user);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLong(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private String resolveRoom(ServerHttpRequest request) {
+        String room = UriComponentsBuilder.fromUri(request.getURI()).build().getQueryParams().getFirst("room");
+        if (room != null) {
+            return room;
+        }
+        String path = request.getURI().getPath();
+        int pos = path.lastIndexOf("/chat/");
+        if (pos >= 0 && pos + 6 < path.length()) {
+            return path.substring(pos + 6);
+        }
+        return ChatRoomRegistry.DEFAULT_ROOM;
+    }
 }
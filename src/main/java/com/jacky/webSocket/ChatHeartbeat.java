@@ -0,0 +1,86 @@
+package com.jacky.webSocket;
+
+import com.jacky.mbean.ChatMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+
+/**
+ * @author jacky
+ * @time 2021-01-26 20:10
+ * @discription 聊天室的心跳
+ *              TCP连接半开(例如客户端断网、休眠)时服务器收不到关闭帧，会话会一直留在聊天室里，
+ *              每次广播都还要往它的发送队列里写。
+ *              因此定时给所有会话发送Ping，浏览器会自动回复Pong：
+ *                  收到Pong时清零该会话的未回复计数，并记录往返时间(RTT)；
+ *                  连续maxMissedPongs次没有回复的会话，从聊天室移除并关闭。
+ *              每次心跳还会检查会话当前这次发送的耗时，阻塞在写操作上超过sendTimeLimit的会话被移除并关闭；
+ *              关闭Ping(chat.heartbeat.enabled=false)时仍然执行这项检查。
+ *              统计数据通过ChatMBean暴露给JMX。
+ */
+@Component
+public class ChatHeartbeat {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    ChatRoomRegistry chatRoomRegistry;
+
+    @Autowired
+    ChatMBean chatMBean;
+
+    @Value("${chat.heartbeat.enabled:true}")
+    boolean enabled;
+
+    //连续多少次没有收到Pong后关闭会话
+    @Value("${chat.heartbeat.maxMissedPongs:3}")
+    int maxMissedPongs;
+
+    @Scheduled(initialDelayString = "${chat.heartbeat.interval:25000}", fixedDelayString = "${chat.heartbeat.interval:25000}")
+    public void heartbeat() {
+        long sessions = 0;
+        int evicted = 0;
+        for (ChatRoom room : chatRoomRegistry.getRooms()) {
+            for (ChatSession chatSession : room.getSubscribers()) {
+                if (!chatSession.checkSendTime()) {
+                    // 发送超时已被关闭的会话，或已关闭但还没有收到afterConnectionClosed的会话:
+                    room.leave(chatSession.getId());
+                } else if (!enabled) {
+                    sessions++;
+                } else if (chatSession.getMissedPongs() >= maxMissedPongs) {
+                    evict(room, chatSession);
+                    evicted++;
+                } else if (chatSession.ping()) {
+                    chatMBean.onPing();
+                    sessions++;
+                } else {
+                    // 已关闭但还没有收到afterConnectionClosed的会话，直接移除:
+                    room.leave(chatSession.getId());
+                }
+            }
+        }
+        chatMBean.setSessions(sessions);
+        if (evicted > 0) {
+            logger.info("heartbeat: {} sessions alive, {} sessions evicted.", sessions, evicted);
+        }
+    }
+
+    /**
+     * 收到客户端的Pong
+     * @param rtt 往返时间(毫秒)，-1表示无法计算
+     */
+    public void onPong(long rtt) {
+        chatMBean.onPong(rtt);
+    }
+
+    private void evict(ChatRoom room, ChatSession chatSession) {
+        logger.warn("evict websocket session {}: missed {} pongs.", chatSession.getId(), chatSession.getMissedPongs());
+        room.leave(chatSession.getId());
+        chatSession.close(CloseStatus.SESSION_NOT_RELIABLE);
+        chatMBean.onEvict();
+    }
+}
@@ -1,62 +1,166 @@
 package com.jacky.webSocket;
 
-import org.springframework.stereotype.Component;
-
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author jacky
  * @time 2021-01-15 16:41
  * @discription 聊天历史
+ *              使用固定容量的环形缓冲区保存最近的消息：
+ *                  写入只覆盖一个槽位，复杂度O(1)，不再需要ArrayList.remove(0)的数组移动；
+ *                  读取不加锁，按发布序号(sequence)从环中复制出一份不可修改的快照，
+ *                  快照按序号缓存，历史没有变化时多次读取直接返回同一个快照。
+ *              每个聊天室(ChatRoom)持有一个ChatHistory，由ChatRoomRegistry创建。
  */
-@Component
 public class ChatHistory {
 
-    final int maxMessages = 100;
-    final List<ChatMessage> chatHistory = new ArrayList<>(100);
-    final Lock readLock;
-    final Lock writeLock;
+    final int capacity;
+    final AtomicReferenceArray<Slot> ring;
+    //仅用于多个写线程之间互斥，读线程从不获取该锁
+    final Lock writeLock = new ReentrantLock();
+
+    //已发布的消息总数，即下一条消息的序号
+    private volatile long published = 0;
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<ChatMessage>emptyList());
+
+    public ChatHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("chat history capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
 
     /**
-     * Creates a new ReentrantReadWriteLock with default (nonfair) ordering properties.
+     * 获取历史消息的快照
+     * @return 不可修改的历史消息列表，按时间先后排列
      */
-    public ChatHistory() {
-        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-        this.readLock = lock.readLock();
-        this.writeLock = lock.writeLock();
+    public List<ChatMessage> getHistory() {
+        return getSnapshot().getMessages();
     }
 
     /**
-     * 获取历史消息的一份拷贝
-     * @return 历史消息的拷贝
+     * 获取带版本号的历史消息快照，版本号相同的快照内容一定相同，可用于缓存基于历史消息计算出的结果
+     * @return 历史消息快照
      */
-    public List<ChatMessage> getHistory() {
-        this.readLock.lock();
-        try {
-            //应该返回不可更改的chatHistory，但由于JDK8无List.copyOf()方法，因此此处返回可修改的List。
-            return chatHistory;
-        } finally {
-            this.readLock.unlock();
+    public Snapshot getSnapshot() {
+        while (true) {
+            Snapshot current = this.snapshot;
+            long seq = this.published;
+            if (current.seq == seq) {
+                return current;
+            }
+            List<ChatMessage> messages = copy(seq);
+            if (messages == null) {
+                //写线程在复制过程中越过了读取的范围，按最新的序号重新复制
+                continue;
+            }
+            Snapshot latest = new Snapshot(seq, messages);
+            //只缓存比现有快照更新的版本，并发读线程重复构建也无妨
+            if (seq > this.snapshot.seq) {
+                this.snapshot = latest;
+            }
+            return latest;
         }
     }
 
     /**
-     * 添加一条消息到历史消息中
+     * 添加一条消息到历史消息中，并为消息分配序号
      * @param message 需要添加的消息
      */
     public void addToHistory(ChatMessage message){
         this.writeLock.lock();
         try {
-            this.chatHistory.add(message);
-            if (this.chatHistory.size() > maxMessages){
-                this.chatHistory.remove(0);
+            long seq = this.published;
+            message.seq = seq;
+            this.ring.set((int) (seq % capacity), new Slot(seq, message));
+            //volatile写保证读线程看到新序号时，槽位已写入
+            this.published = seq + 1;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * 从持久化日志中恢复历史消息，只应在聊天室创建时调用
+     * @param messages 按序号连续排列的最近消息
+     * @param nextSeq 下一条消息的序号
+     */
+    public void restore(List<ChatMessage> messages, long nextSeq) {
+        this.writeLock.lock();
+        try {
+            for (ChatMessage message : messages) {
+                this.ring.set((int) (message.seq % capacity), new Slot(message.seq, message));
             }
+            this.published = nextSeq;
         } finally {
             this.writeLock.unlock();
         }
     }
 
+    /**
+     * @return 下一条消息的序号，历史每变化一次加1，可作为历史的版本号
+     */
+    public long getSequence() {
+        return this.published;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 复制序号在[seq - capacity, seq)范围内的消息。
+     * 复制过程中如果写线程追上来覆盖了槽位，槽位中的序号会大于期望值，此时返回null，由调用者重试，
+     * 不返回被截断的历史。槽位为空或序号更小，说明从日志恢复的消息不足一整圈，这些序号本来就没有消息。
+     * @return 按序号排列的消息，被写线程追上时返回null
+     */
+    private List<ChatMessage> copy(long seq) {
+        long from = Math.max(0, seq - capacity);
+        List<ChatMessage> list = new ArrayList<>((int) (seq - from));
+        for (long i = from; i < seq; i++) {
+            Slot slot = this.ring.get((int) (i % capacity));
+            if (slot == null || slot.seq < i) {
+                continue;
+            }
+            if (slot.seq > i) {
+                return null;
+            }
+            list.add(slot.message);
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    static final class Slot {
+        final long seq;
+        final ChatMessage message;
+
+        Slot(long seq, ChatMessage message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    public static final class Snapshot {
+        final long seq;
+        final List<ChatMessage> messages;
+
+        Snapshot(long seq, List<ChatMessage> messages) {
+            this.seq = seq;
+            this.messages = messages;
+        }
+
+        public long getSequence() {
+            return seq;
+        }
+
+        public List<ChatMessage> getMessages() {
+            return messages;
+        }
+    }
 }
@@ -0,0 +1,355 @@
+package com.jacky.webSocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * @author jacky
+ * @time 2021-01-24 14:20
+ * @discription 聊天室的持久化消息日志
+ *              消息按序号追加写入内存映射的段文件(segment)，每个段文件名是它的第一条消息的序号，
+ *              段文件按segmentSize预分配并映射，写满后滚动到新文件；写满的段被截断到实际写入的大小(压缩)，
+ *              不再占用预分配的剩余空间，重启后以只读方式映射。
+ *              所有段占用的磁盘空间超过retentionSize时删除最旧的段。
+ *
+ *              每条记录的格式：[int 长度][long 序号][long 时间戳][JSON]，
+ *              写入时先写内容再写长度，进程崩溃时不完整的记录长度为0，重启扫描时会被当作文件末尾。
+ *
+ *              每个段在内存中维护一个稀疏索引，每隔indexInterval字节记录一次(序号, 位置)，
+ *              按序号分页读取时先二分查找索引，再从索引位置向后扫描。
+ *              段文件和索引都要求序号严格递增，flush()会丢弃序号不大于已写入序号的消息，
+ *              ChatRoom.publish()在同一个锁内分配序号并append()，保证入队顺序与序号一致。
+ *
+ *              append()只是把消息放入队列，真正的写入和force()由flush()批量完成(group flush)，
+ *              flush()由ChatLogStore在后台定时调用，不在广播的关键路径上。
+ *              flush()只能由一个线程调用，读取可以在任意线程并发进行。
+ */
+public class ChatLog {
+
+    static final int HEADER_SIZE = 4 + 8 + 8;
+    static final String SUFFIX = ".log";
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatLog.class);
+
+    private final File dir;
+    private final int segmentSize;
+    private final long retentionSize;
+    private final int indexInterval;
+    private final ObjectMapper objectMapper;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Queue<ChatMessage> pending = new ConcurrentLinkedQueue<>();
+
+    //下一条消息的序号
+    private volatile long nextSeq;
+
+    public ChatLog(File dir, int segmentSize, long retentionSize, int indexInterval, ObjectMapper objectMapper) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retentionSize = retentionSize;
+        this.indexInterval = indexInterval;
+        this.objectMapper = objectMapper;
+        open();
+    }
+
+    /**
+     * @return 下一条消息应使用的序号，即日志中最后一条消息的序号+1
+     */
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * @return 日志中第一条消息的序号
+     */
+    public long getFirstSeq() {
+        return segments.isEmpty() ? nextSeq : segments.get(0).baseSeq;
+    }
+
+    /**
+     * 追加一条消息，只入队，不写文件
+     * @param message 已分配序号的消息
+     */
+    public void append(ChatMessage message) {
+        this.pending.add(message);
+    }
+
+    /**
+     * 把队列中的消息写入段文件，并一次性force()到磁盘
+     * @return 写入的消息条数
+     * @throws IOException
+     */
+    public int flush() throws IOException {
+        int count = 0;
+        Segment dirty = null;
+        ChatMessage message;
+        while ((message = this.pending.poll()) != null) {
+            if (message.seq < this.nextSeq) {
+                logger.warn("chat message {} is out of order, next seq = {}, skipped.", message.seq, this.nextSeq);
+                continue;
+            }
+            byte[] data = objectMapper.writeValueAsBytes(message);
+            if (HEADER_SIZE + data.length > segmentSize) {
+                logger.warn("chat message {} is too large for the log segment, skipped.", message.seq);
+                continue;
+            }
+            Segment segment = activeSegment();
+            if (segment == null || !segment.hasRoom(HEADER_SIZE + data.length)) {
+                if (segment != null) {
+                    segment.seal();
+                }
+                segment = roll(message.seq);
+            }
+            segment.write(message.seq, message.timestamp, data);
+            this.nextSeq = message.seq + 1;
+            dirty = segment;
+            count++;
+        }
+        if (dirty != null) {
+            dirty.force();
+        }
+        return count;
+    }
+
+    /**
+     * 读取序号小于before的最多limit条消息
+     * @param before 不包含的序号上界
+     * @param limit 最多读取的条数
+     * @return 按序号从小到大排列的消息
+     * @throws IOException
+     */
+    public List<ChatMessage> readBefore(long before, int limit) throws IOException {
+        long from = Math.max(getFirstSeq(), before - limit);
+        if (from >= before) {
+            return new ArrayList<>();
+        }
+        List<ChatMessage> messages = new ArrayList<>((int) (before - from));
+        for (Segment segment : this.segments) {
+            if (segment.lastSeq < from) {
+                continue;
+            }
+            if (segment.baseSeq >= before) {
+                break;
+            }
+            segment.read(from, before, messages, objectMapper);
+        }
+        return messages;
+    }
+
+    /**
+     * 关闭日志，把尚未写入的消息写入文件
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flush();
+        this.segments.clear();
+    }
+
+    private Segment activeSegment() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create chat log directory: " + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        long next = 0;
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            long baseSeq = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            //只有最后一个段继续写入，之前的段都已写满并截断，按文件实际大小只读映射
+            boolean active = i == files.length - 1;
+            Segment segment = new Segment(file, baseSeq, active ? segmentSize : (int) file.length(), active, indexInterval);
+            segment.recover();
+            this.segments.add(segment);
+            if (segment.lastSeq >= 0) {
+                next = segment.lastSeq + 1;
+            }
+        }
+        this.nextSeq = next;
+        logger.info("open chat log {}: {} segments, next seq = {}", dir, segments.size(), next);
+    }
+
+    private Segment roll(long baseSeq) throws IOException {
+        File file = new File(dir, String.format("%020d%s", baseSeq, SUFFIX));
+        Segment segment = new Segment(file, baseSeq, segmentSize, true, indexInterval);
+        this.segments.add(segment);
+        long total = 0;
+        for (Segment s : this.segments) {
+            total += s.diskSize;
+        }
+        //按占用的磁盘空间删除最旧的段，当前段按预分配的大小计算，至少保留当前段
+        while (total > retentionSize && this.segments.size() > 1) {
+            Segment oldest = this.segments.remove(0);
+            total -= oldest.diskSize;
+            //Java 8无法主动解除映射，文件删除后空间在映射被GC回收时释放
+            if (!oldest.file.delete()) {
+                logger.warn("cannot delete chat log segment {}", oldest.file);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * 一个段文件
+     */
+    static final class Segment {
+
+        final File file;
+        final long baseSeq;
+        final int indexInterval;
+        final MappedByteBuffer buffer;
+
+        //稀疏索引：序号、位置
+        private final List<long[]> index = new ArrayList<>();
+        private int lastIndexedPosition = -1;
+
+        //已写入的字节数，volatile写保证读线程看到新的size时记录内容已写入
+        volatile int size;
+        volatile long lastSeq = -1;
+        //文件占用的磁盘空间，写入中的段是预分配的大小，截断后是实际写入的大小
+        volatile long diskSize;
+
+        Segment(File file, long baseSeq, int mapSize, boolean writable, int indexInterval) throws IOException {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.indexInterval = indexInterval;
+            try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r"); FileChannel channel = raf.getChannel()) {
+                this.buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, mapSize);
+            }
+            this.diskSize = mapSize;
+        }
+
+        boolean hasRoom(int recordSize) {
+            return size + recordSize <= buffer.capacity();
+        }
+
+        void write(long seq, long timestamp, byte[] data) {
+            int position = this.size;
+            ByteBuffer buf = this.buffer.duplicate();
+            buf.position(position + 4);
+            buf.putLong(seq);
+            buf.putLong(timestamp);
+            buf.put(data);
+            //最后写长度
+            buf.putInt(position, data.length);
+            addIndex(seq, position);
+            this.lastSeq = seq;
+            this.size = position + HEADER_SIZE + data.length;
+        }
+
+        void force() {
+            this.buffer.force();
+        }
+
+        /**
+         * 段写满后刷盘，并把文件截断到实际写入的大小
+         * 之后只会读取size以内的内容，映射中超出文件末尾的部分不会再被访问。
+         */
+        void seal() {
+            force();
+            int written = this.size;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(written);
+                this.diskSize = written;
+            } catch (IOException e) {
+                //有的系统(例如Windows)不允许截断仍被映射的文件，只能保留预分配的大小
+                logger.warn("cannot truncate chat log segment {}: {}", file, e.getMessage());
+            }
+        }
+
+        /**
+         * 启动时扫描段文件，重建稀疏索引并找到写入位置
+         */
+        void recover() {
+            ByteBuffer buf = this.buffer.duplicate();
+            int position = 0;
+            while (position + HEADER_SIZE <= buf.capacity()) {
+                int length = buf.getInt(position);
+                if (length <= 0 || position + HEADER_SIZE + length > buf.capacity()) {
+                    break;
+                }
+                long seq = buf.getLong(position + 4);
+                addIndex(seq, position);
+                this.lastSeq = seq;
+                position += HEADER_SIZE + length;
+            }
+            this.size = position;
+        }
+
+        /**
+         * 读取序号在[from, before)之间的记录
+         */
+        void read(long from, long before, List<ChatMessage> messages, ObjectMapper objectMapper) throws IOException {
+            int limit = this.size;
+            ByteBuffer buf = this.buffer.duplicate();
+            int position = floorPosition(from);
+            while (position + HEADER_SIZE <= limit) {
+                int length = buf.getInt(position);
+                long seq = buf.getLong(position + 4);
+                if (seq >= before) {
+                    break;
+                }
+                if (seq >= from) {
+                    byte[] data = new byte[length];
+                    buf.position(position + HEADER_SIZE);
+                    buf.get(data);
+                    ChatMessage message = objectMapper.readValue(data, ChatMessage.class);
+                    message.seq = seq;
+                    messages.add(message);
+                }
+                position += HEADER_SIZE + length;
+            }
+        }
+
+        private void addIndex(long seq, int position) {
+            if (lastIndexedPosition < 0 || position - lastIndexedPosition >= indexInterval) {
+                synchronized (index) {
+                    index.add(new long[] { seq, position });
+                }
+                lastIndexedPosition = position;
+            }
+        }
+
+        /**
+         * 二分查找序号不大于seq的最后一个索引项的位置
+         */
+        private int floorPosition(long seq) {
+            synchronized (index) {
+                int low = 0;
+                int high = index.size() - 1;
+                int position = 0;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    long[] entry = index.get(mid);
+                    if (entry[0] <= seq) {
+                        position = (int) entry[1];
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                return position;
+            }
+        }
+    }
+}
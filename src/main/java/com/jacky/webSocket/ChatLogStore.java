@@ -0,0 +1,112 @@
+package com.jacky.webSocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author jacky
+ * @time 2021-01-24 15:10
+ * @discription 管理所有聊天室的持久化日志
+ *              每个聊天室一个目录，chat.log.dir/{room}/，目录下是该聊天室的段文件。
+ *              定时任务每隔chat.log.flushInterval毫秒把所有聊天室排队的消息批量写入并force()到磁盘，
+ *              进程崩溃时最多丢失这一个间隔内的消息。
+ */
+@Component
+public class ChatLogStore {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    //是否启用持久化日志
+    @Value("${chat.log.enabled:false}")
+    boolean enabled;
+
+    @Value("${chat.log.dir:chat-log}")
+    String dir;
+
+    //单个段文件的大小(字节)
+    @Value("${chat.log.segmentSize:4194304}")
+    int segmentSize;
+
+    //每个聊天室的日志占用的磁盘空间上限(字节)，超过后删除最旧的段
+    @Value("${chat.log.retentionSize:67108864}")
+    long retentionSize;
+
+    //稀疏索引的间隔(字节)
+    @Value("${chat.log.indexInterval:4096}")
+    int indexInterval;
+
+    private final Map<String, ChatLog> logs = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 打开聊天室的日志，未启用时返回null
+     * @param room 聊天室名称
+     * @return
+     * @throws IOException
+     */
+    public ChatLog open(String room) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+        ChatLog log = new ChatLog(new File(dir, room), segmentSize, retentionSize, indexInterval, objectMapper);
+        logs.put(room, log);
+        return log;
+    }
+
+    /**
+     * 批量写入所有聊天室排队的消息
+     */
+    @Scheduled(initialDelayString = "${chat.log.flushInterval:200}", fixedDelayString = "${chat.log.flushInterval:200}")
+    public synchronized void flush() {
+        for (Map.Entry<String, ChatLog> entry : logs.entrySet()) {
+            try {
+                entry.getValue().flush();
+            } catch (IOException | RuntimeException e) {
+                logger.warn("flush chat log of room {} failed.", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * 关闭一个聊天室的日志，写入尚未写入的消息，不再定时刷新
+     * @param room 聊天室名称
+     * @param log 聊天室的日志
+     */
+    public synchronized void close(String room, ChatLog log) {
+        logs.remove(room, log);
+        try {
+            log.close();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("close chat log of room {} failed.", room, e);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        for (Map.Entry<String, ChatLog> entry : logs.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (IOException | RuntimeException e) {
+                logger.warn("close chat log of room {} failed.", entry.getKey(), e);
+            }
+        }
+        logs.clear();
+    }
+}
@@ -1,11 +1,15 @@
 package com.jacky.webSocket;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 /**
  * @author jacky
  * @time 2021-01-15 16:36
  * @discription 发送的消息是序列化后的JSON，可以用ChatMessage表示
  */
 public class ChatMessage extends ChatText{
+    //聊天室内单调递增的序号，由ChatHistory在保存时分配
+    public long seq;
     public long timestamp;
     public String name;
 
@@ -22,4 +26,14 @@ public class ChatMessage extends ChatText{
 
 class ChatText{
     public String text;
+    //分页请求：请求序号小于before的更早的消息
+    //以下两个字段只出现在客户端的请求中，为null时不序列化，避免每条广播都带上
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long before;
+    //重连同步：客户端已收到的最后一条消息的序号，请求补发之后的消息
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long since;
+    //重连同步：since所属的序号空间，即上次同步帧中的epoch
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String epoch;
 }
@@ -0,0 +1,93 @@
+package com.jacky.webSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jacky
+ * @time 2021-01-21 20:30
+ * @discription 广播消息合并器
+ *              聊天室很热闹时，每条消息都单独给每个客户端发一帧，系统调用和帧开销都很大。
+ *              合并器把一个时间窗口内的消息收集起来，窗口结束或攒够maxBatchSize条时一次性交给Sink，
+ *              由Sink序列化成一个JSON数组帧发给所有客户端。
+ *              每条消息最多延迟windowMillis毫秒。
+ */
+public class ChatMessageBatcher {
+
+    /**
+     * 接收合并后的一批消息
+     */
+    public interface Sink {
+        void send(List<ChatMessage> messages) throws IOException;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final TaskScheduler scheduler;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final Sink sink;
+
+    private final Queue<ChatMessage> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    //当前窗口是否已经安排了定时发送
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public ChatMessageBatcher(TaskScheduler scheduler, long windowMillis, int maxBatchSize, Sink sink) {
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.sink = sink;
+    }
+
+    /**
+     * 添加一条待广播的消息
+     * @param message
+     */
+    public void add(ChatMessage message) {
+        this.pending.add(message);
+        if (this.pendingCount.incrementAndGet() >= maxBatchSize) {
+            flush();
+        } else if (this.scheduled.compareAndSet(false, true)) {
+            this.scheduler.schedule(this::onWindowClosed, new Date(System.currentTimeMillis() + windowMillis));
+        }
+    }
+
+    private void onWindowClosed() {
+        this.scheduled.set(false);
+        flush();
+    }
+
+    /**
+     * 立即发送所有待发送的消息，每批不超过maxBatchSize条。
+     * 加锁保证各批次按顺序交给Sink。
+     */
+    public synchronized void flush() {
+        while (true) {
+            List<ChatMessage> batch = new ArrayList<>();
+            ChatMessage message;
+            while (batch.size() < maxBatchSize && (message = this.pending.poll()) != null) {
+                batch.add(message);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            this.pendingCount.addAndGet(-batch.size());
+            try {
+                this.sink.send(batch);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("broadcast {} messages failed.", batch.size(), e);
+            }
+        }
+    }
+}
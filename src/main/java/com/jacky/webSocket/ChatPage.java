@@ -0,0 +1,18 @@
+package com.jacky.webSocket;
+
+import java.util.List;
+
+/**
+ * @author jacky
+ * @time 2021-01-24 16:05
+ * @discription 分页返回的更早的历史消息
+ */
+class ChatPage{
+    public long before;
+    public List<ChatMessage> messages;
+
+    ChatPage(long before, List<ChatMessage> messages) {
+        this.before = before;
+        this.messages = messages;
+    }
+}
@@ -0,0 +1,326 @@
+package com.jacky.webSocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * @author jacky
+ * @time 2021-01-22 20:12
+ * @discription 聊天室
+ *              每个聊天室有自己的历史消息和订阅者，广播只发给本聊天室的会话，
+ *              因此广播的开销只与聊天室人数有关，与服务器上的总连接数无关。
+ *              没有订阅者且长时间没有消息的聊天室由ChatRoomRegistry关闭并移除，
+ *              关闭后join()和publish()都返回false，调用方应重新从ChatRoomRegistry获取聊天室。
+ *
+ *              客户端按序号去重，收到序号更大的消息后会丢弃序号更小的消息，因此每个会话的发送队列必须按序号排列：
+ *              分配序号和放入发送队列(或合并器)都在同一把锁内完成；加入聊天室时先把历史消息帧或同步帧放入发送队列，
+ *              再开始接收广播，也在这把锁内完成。
+ */
+public class ChatRoom {
+
+    private final String name;
+    //序号空间的标识，每个聊天室实例不同，客户端的since只在同一个epoch内有效
+    private final String epoch = UUID.randomUUID().toString();
+    private final ChatHistory chatHistory;
+    private final ChatCodec codec;
+    //持久化日志，未启用时为null
+    private final ChatLog chatLog;
+
+    //本聊天室的所有会话
+    private final Map<String, ChatSession> subscribers = new ConcurrentHashMap<>();
+
+    //合并模式下的消息合并器，未启用时为null
+    private volatile ChatMessageBatcher batcher;
+
+    //最近一次序列化的历史消息帧，历史版本号不变时所有新连接共用同一个帧
+    private volatile HistoryFrame historyFrame = null;
+    //最近一次序列化的完整同步帧
+    private volatile HistoryFrame resetFrame = null;
+
+    //保护closed，加入、发布和关闭互斥
+    private final Object lock = new Object();
+    private boolean closed = false;
+    //最近一次加入、离开或发布消息的时间
+    private volatile long lastActiveTime = System.currentTimeMillis();
+
+    public ChatRoom(String name, ChatHistory chatHistory, ChatLog chatLog, ChatCodec codec) {
+        this.name = name;
+        this.chatHistory = chatHistory;
+        this.chatLog = chatLog;
+        this.codec = codec;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public ChatHistory getChatHistory() {
+        return chatHistory;
+    }
+
+    void setBatcher(ChatMessageBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * 加入聊天室，先发送历史消息帧或同步帧，之后的广播都是序号更大的消息
+     * @param chatSession
+     * @param since 客户端已收到的最后一条消息的序号，-1表示没有收到过；null表示不使用同步帧，发送历史消息帧
+     * @param epoch since所属的序号空间
+     * @return 聊天室已关闭时返回false
+     * @throws IOException
+     */
+    public boolean join(ChatSession chatSession, Long since, String epoch) throws IOException {
+        synchronized (lock) {
+            if (this.closed) {
+                return false;
+            }
+            chatSession.send(since == null ? getHistoryFrame() : getSyncFrame(since, epoch));
+            chatSession.setSynced();
+            this.subscribers.put(chatSession.getId(), chatSession);
+            this.lastActiveTime = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * 加入聊天室，但在客户端发来since、调用sync()之前不接收广播
+     * @param chatSession
+     * @return 聊天室已关闭时返回false
+     */
+    public boolean joinUnsynced(ChatSession chatSession) {
+        synchronized (lock) {
+            if (this.closed) {
+                return false;
+            }
+            this.subscribers.put(chatSession.getId(), chatSession);
+            this.lastActiveTime = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * 发送同步帧，尚未同步的会话从此开始接收广播
+     * @param chatSession
+     * @param since 客户端已收到的最后一条消息的序号，-1表示没有收到过
+     * @param epoch since所属的序号空间
+     * @throws IOException
+     */
+    public void sync(ChatSession chatSession, long since, String epoch) throws IOException {
+        synchronized (lock) {
+            chatSession.send(getSyncFrame(since, epoch));
+            chatSession.setSynced();
+        }
+    }
+
+    public ChatSession leave(String sessionId) {
+        ChatSession chatSession = this.subscribers.remove(sessionId);
+        this.lastActiveTime = System.currentTimeMillis();
+        return chatSession;
+    }
+
+    public ChatSession getSubscriber(String sessionId) {
+        return this.subscribers.get(sessionId);
+    }
+
+    public Collection<ChatSession> getSubscribers() {
+        return Collections.unmodifiableCollection(subscribers.values());
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * 保存到历史消息并广播
+     * 广播只是放入各会话的发送队列或合并器，在锁内完成，保证每个会话按序号收到消息。
+     * 启用持久化日志时消息只是放入日志的写入队列，由后台批量写入，不会阻塞广播。
+     * @param chatMessage
+     * @return 聊天室已关闭时返回false，消息没有保存
+     * @throws IOException
+     */
+    public boolean publish(ChatMessage chatMessage) throws IOException {
+        synchronized (lock) {
+            if (this.closed) {
+                return false;
+            }
+            this.chatHistory.addToHistory(chatMessage);
+            if (this.chatLog != null) {
+                this.chatLog.append(chatMessage);
+            }
+            this.lastActiveTime = System.currentTimeMillis();
+            broadcastMessage(chatMessage);
+        }
+        return true;
+    }
+
+    /**
+     * 没有订阅者且超过idleTimeout毫秒没有活动时关闭聊天室
+     * @param idleTimeout
+     * @param closeLog 持有锁时调用，关闭持久化日志，
+     *                 等待加入的线程在旧日志关闭后才会创建同名的新聊天室并重新打开日志
+     * @return 是否已关闭
+     */
+    boolean closeIfIdle(long idleTimeout, Consumer<ChatLog> closeLog) {
+        synchronized (lock) {
+            if (this.closed) {
+                return true;
+            }
+            if (!this.subscribers.isEmpty() || System.currentTimeMillis() - this.lastActiveTime < idleTimeout) {
+                return false;
+            }
+            this.closed = true;
+            if (this.chatLog != null) {
+                closeLog.accept(this.chatLog);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 获取序号小于before的最多limit条消息，先从内存中的历史消息取，不够时再从持久化日志中读取
+     * @param before 不包含的序号上界
+     * @param limit 最多返回的条数
+     * @return 按序号从小到大排列的消息
+     * @throws IOException
+     */
+    public List<ChatMessage> getMessagesBefore(long before, int limit) throws IOException {
+        long from = Math.max(0, before - limit);
+        List<ChatMessage> messages = new ArrayList<>();
+        for (ChatMessage message : chatHistory.getHistory()) {
+            if (message.seq >= from && message.seq < before) {
+                messages.add(message);
+            }
+        }
+        long first = messages.isEmpty() ? before : messages.get(0).seq;
+        if (first > from && this.chatLog != null) {
+            List<ChatMessage> older = this.chatLog.readBefore(first, (int) (first - from));
+            older.addAll(messages);
+            messages = older;
+        }
+        return messages;
+    }
+
+    /**
+     * 把分页读取的更早的消息作为一帧
+     * @param before
+     * @param limit
+     * @return
+     * @throws IOException
+     */
+    public ChatFrame getPageFrame(long before, int limit) throws IOException {
+        return new ChatFrame(new ChatPage(before, getMessagesBefore(before, limit)), codec);
+    }
+
+    /**
+     * 广播消息
+     * 启用合并模式时，消息先交给合并器，一个窗口内的消息合并为一帧发送；
+     * 否则立即发送。
+     * 只能在publish()持有锁时调用。
+     * @param chatMessage
+     * @throws IOException
+     */
+    private void broadcastMessage(ChatMessage chatMessage) throws IOException {
+        ChatMessageBatcher batcher = this.batcher;
+        if (batcher != null) {
+            batcher.add(chatMessage);
+        } else {
+            sendToAll(Collections.singletonList(chatMessage));
+        }
+    }
+
+    /**
+     * 把一组消息作为一帧发给本聊天室所有客户端
+     * 消息每种格式只序列化一次，然后放入每个会话的发送队列，由chatSendExecutor异步写出，
+     * 广播耗时与最慢的客户端无关；被判定为慢客户端而关闭的会话会从订阅者中移除。
+     * 尚未同步的会话跳过，这些消息会包含在它之后收到的同步帧中。
+     * @param messages
+     * @throws IOException
+     */
+    void sendToAll(List<ChatMessage> messages) throws IOException {
+        ChatFrame frame = new ChatFrame(messages, codec);
+        for (ChatSession chatSession : subscribers.values()) {
+            if (chatSession.isSynced() && !chatSession.send(frame)) {
+                subscribers.remove(chatSession.getId());
+            }
+        }
+    }
+
+    /**
+     * 获取客户端重连时需要补发的帧
+     * 缺失的消息都还在内存的历史消息中时，只补发序号大于since的消息；
+     * 否则(since来自其他节点或此前的聊天室实例，间隔超出了保留范围，或序号比客户端的小)发送完整的历史消息，并标记reset。
+     * @param since 客户端已收到的最后一条消息的序号，-1表示没有收到过
+     * @param epoch since所属的序号空间，与本聊天室的epoch不同时since无效
+     * @return 同步帧
+     * @throws IOException
+     */
+    public ChatFrame getSyncFrame(long since, String epoch) throws IOException {
+        ChatHistory.Snapshot snapshot = chatHistory.getSnapshot();
+        List<ChatMessage> messages = snapshot.getMessages();
+        long next = snapshot.getSequence();
+        long oldest = messages.isEmpty() ? next : messages.get(0).seq;
+        if ((since >= 0 && !this.epoch.equals(epoch)) || since + 1 > next || since + 1 < oldest) {
+            return getResetFrame(snapshot);
+        }
+        List<ChatMessage> delta = messages.subList((int) (since + 1 - oldest), messages.size());
+        return new ChatFrame(new ChatSync(since, false, this.epoch, delta), codec);
+    }
+
+    /**
+     * 获取历史消息序列化后的帧。
+     * 历史消息变化后缓存失效，由第一个发现失效的线程重新序列化一次，
+     * 大量客户端同时重连时不会重复做相同的JSON序列化。
+     * @return 历史消息帧
+     * @throws IOException
+     */
+    public ChatFrame getHistoryFrame() throws IOException {
+        HistoryFrame frame = this.historyFrame;
+        if (frame != null && frame.seq == chatHistory.getSequence()) {
+            return frame.message;
+        }
+        synchronized (this) {
+            ChatHistory.Snapshot snapshot = chatHistory.getSnapshot();
+            frame = this.historyFrame;
+            if (frame == null || frame.seq != snapshot.getSequence()) {
+                frame = new HistoryFrame(snapshot.getSequence(), new ChatFrame(snapshot.getMessages(), codec));
+                this.historyFrame = frame;
+            }
+            return frame.message;
+        }
+    }
+
+    /**
+     * 获取完整历史消息的同步帧，与历史消息帧一样按版本号缓存，大量客户端同时重连时只序列化一次
+     */
+    private ChatFrame getResetFrame(ChatHistory.Snapshot snapshot) {
+        HistoryFrame frame = this.resetFrame;
+        if (frame == null || frame.seq != snapshot.getSequence()) {
+            frame = new HistoryFrame(snapshot.getSequence(),
+                    new ChatFrame(new ChatSync(-1, true, this.epoch, snapshot.getMessages()), codec));
+            this.resetFrame = frame;
+        }
+        return frame.message;
+    }
+
+    static final class HistoryFrame {
+        final long seq;
+        final ChatFrame message;
+
+        HistoryFrame(long seq, ChatFrame message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+}
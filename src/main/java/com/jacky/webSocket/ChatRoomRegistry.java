@@ -0,0 +1,197 @@
+package com.jacky.webSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * @author jacky
+ * @time 2021-01-22 20:30
+ * @discription 聊天室注册表
+ *              按聊天室名称保存所有ChatRoom，会话按聊天室分片保存在各自的ChatRoom中。
+ *              查找已存在的聊天室只是一次ConcurrentHashMap.get()，不加锁；
+ *              只有第一次创建聊天室时才走computeIfAbsent()。
+ *              定时任务关闭并移除没有订阅者、超过chat.room.idleTimeout毫秒没有活动的聊天室，同时关闭它的持久化日志，
+ *              因此maxRooms只限制当前存活的聊天室数量；聊天室数量达到上限时也会先尝试移除空闲的聊天室。
+ *              被移除的聊天室再次有人进入时重新创建，启用持久化日志时从日志恢复历史消息，否则历史消息为空。
+ */
+@Component
+public class ChatRoomRegistry {
+
+    public static final String DEFAULT_ROOM = "lobby";
+
+    //聊天室名称只允许字母、数字、下划线和短横线
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_\\-]{1,32}");
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    ChatCodec chatCodec;
+
+    @Autowired
+    @Qualifier("chatTaskScheduler")
+    TaskScheduler chatTaskScheduler;
+
+    @Autowired
+    ChatLogStore chatLogStore;
+
+    //每个聊天室保留的历史消息条数
+    @Value("${chat.history.capacity:100}")
+    int historyCapacity;
+
+    //最多允许的聊天室数量
+    @Value("${chat.room.maxRooms:1000}")
+    int maxRooms;
+
+    //没有订阅者的聊天室空闲多久(毫秒)后被移除
+    @Value("${chat.room.idleTimeout:600000}")
+    long idleTimeout;
+
+    //是否启用广播合并模式
+    @Value("${chat.broadcast.coalesce:false}")
+    boolean coalesce;
+
+    //合并窗口(毫秒)，即合并模式下消息的最大额外延迟
+    @Value("${chat.broadcast.window:50}")
+    long coalesceWindow;
+
+    //每帧最多合并的消息条数
+    @Value("${chat.broadcast.maxBatchSize:64}")
+    int coalesceMaxBatchSize;
+
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * 判断聊天室名称是否合法
+     * @param name
+     * @return
+     */
+    public static boolean isValidName(String name) {
+        return name != null && ROOM_NAME.matcher(name).matches();
+    }
+
+    /**
+     * 查找聊天室，不存在时返回null
+     * @param name
+     * @return
+     */
+    public ChatRoom getRoom(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * 查找聊天室，不存在时创建
+     * @param name 聊天室名称
+     * @return 聊天室，如果名称不合法或聊天室数量已达上限，返回null
+     */
+    public ChatRoom getOrCreateRoom(String name) {
+        ChatRoom room = rooms.get(name);
+        if (room != null) {
+            return room;
+        }
+        if (!isValidName(name)) {
+            return null;
+        }
+        if (rooms.size() >= maxRooms && evictIdleRooms() == 0 && rooms.size() >= maxRooms) {
+            logger.warn("cannot create chat room {}: too many rooms.", name);
+            return null;
+        }
+        return rooms.computeIfAbsent(name, this::createRoom);
+    }
+
+    /**
+     * 加入聊天室，不存在时创建；聊天室恰好被关闭时重新创建后再加入
+     * @param name 聊天室名称
+     * @param join 调用ChatRoom的join()或joinUnsynced()，聊天室已关闭时返回false
+     * @return 加入的聊天室，如果名称不合法或聊天室数量已达上限，返回null
+     * @throws IOException
+     */
+    public ChatRoom joinRoom(String name, Join join) throws IOException {
+        for (;;) {
+            ChatRoom room = getOrCreateRoom(name);
+            if (room == null || join.join(room)) {
+                return room;
+            }
+            rooms.remove(name, room);
+        }
+    }
+
+    /**
+     * 在聊天室发布消息，不存在时创建；聊天室恰好被关闭时重新创建后再发布
+     * @param name 聊天室名称
+     * @param chatMessage
+     * @return 发布消息的聊天室，如果名称不合法或聊天室数量已达上限，返回null
+     * @throws IOException
+     */
+    public ChatRoom publish(String name, ChatMessage chatMessage) throws IOException {
+        for (;;) {
+            ChatRoom room = getOrCreateRoom(name);
+            if (room == null || room.publish(chatMessage)) {
+                return room;
+            }
+            rooms.remove(name, room);
+        }
+    }
+
+    /**
+     * 关闭并移除空闲的聊天室
+     * @return 移除的聊天室数量
+     */
+    @Scheduled(initialDelayString = "${chat.room.evictInterval:60000}", fixedDelayString = "${chat.room.evictInterval:60000}")
+    public int evictIdleRooms() {
+        int evicted = 0;
+        for (ChatRoom room : rooms.values()) {
+            if (room.closeIfIdle(idleTimeout, chatLog -> chatLogStore.close(room.getName(), chatLog))
+                    && rooms.remove(room.getName(), room)) {
+                logger.info("evict idle chat room {}.", room.getName());
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public Collection<ChatRoom> getRooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    private ChatRoom createRoom(String name) {
+        logger.info("create chat room {}.", name);
+        ChatHistory chatHistory = new ChatHistory(historyCapacity);
+        ChatLog chatLog = null;
+        try {
+            chatLog = chatLogStore.open(name);
+            if (chatLog != null) {
+                // 从持久化日志中恢复最近的消息，序号接着日志继续分配:
+                chatHistory.restore(chatLog.readBefore(chatLog.getNextSeq(), historyCapacity), chatLog.getNextSeq());
+            }
+        } catch (IOException e) {
+            logger.error("open chat log of room {} failed, messages will not be persisted.", name, e);
+            chatLog = null;
+        }
+        ChatRoom room = new ChatRoom(name, chatHistory, chatLog, chatCodec);
+        if (coalesce) {
+            room.setBatcher(new ChatMessageBatcher(chatTaskScheduler, coalesceWindow, coalesceMaxBatchSize, room::sendToAll));
+        }
+        return room;
+    }
+
+    /**
+     * 加入一个聊天室
+     */
+    @FunctionalInterface
+    public interface Join {
+        boolean join(ChatRoom room) throws IOException;
+    }
+}
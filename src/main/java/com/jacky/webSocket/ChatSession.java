@@ -0,0 +1,272 @@
+package com.jacky.webSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jacky
+ * @time 2021-01-20 21:05
+ * @discription 带独立发送队列的WebSocket会话
+ *              WebSocketSession.sendMessage()不是线程安全的，而且会阻塞到数据写入网络为止，
+ *              如果在广播线程里逐个发送，一个慢客户端就会拖慢所有人。
+ *              因此每个会话持有一个有界的发送队列，消息入队后立即返回，
+ *              由共享的线程池按会话串行地把队列中的消息写出去：
+ *                  1）队列中待发送的字节数超过bufferSizeLimit；
+ *                  2）单次发送耗时超过sendTimeLimit；
+ *              出现以上任一情况，说明客户端跟不上，直接关闭该会话，不再占用服务器资源。
+ *              发送耗时除了在send()时检查，ChatHeartbeat也会定时检查，卡住的会话即使没有新消息也会被关闭。
+ */
+public class ChatSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatSession.class);
+
+    private final WebSocketSession session;
+    //握手时协商的编码格式
+    private final ChatCodec.Format format;
+    private final Executor executor;
+    private final int bufferSizeLimit;
+    private final long sendTimeLimit;
+    //接收消息的限速
+    private final TokenBucket inboundLimiter;
+
+    private final Queue<WebSocketMessage<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger bufferSize = new AtomicInteger();
+    //是否已有线程在发送队列中的消息，保证同一会话同一时刻只有一个线程写
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    //当前这次发送的开始时间，0表示没有在发送
+    private volatile long sendStartTime;
+    private volatile boolean closed;
+    //是否接收聊天室的广播，由ChatRoom在发送历史消息帧或同步帧之后设置
+    private volatile boolean synced;
+
+    //连续未收到Pong的Ping次数
+    private final AtomicInteger missedPongs = new AtomicInteger();
+    //最近一次Ping/Pong的往返时间(毫秒)，-1表示尚未测量
+    private volatile long roundTripMillis = -1;
+
+    public ChatSession(WebSocketSession session, ChatCodec.Format format, Executor executor, int bufferSizeLimit, long sendTimeLimit,
+                       TokenBucket inboundLimiter) {
+        this.session = session;
+        this.format = format;
+        this.executor = executor;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.sendTimeLimit = sendTimeLimit;
+        this.inboundLimiter = inboundLimiter;
+    }
+
+    public WebSocketSession getSession() {
+        return session;
+    }
+
+    public String getId() {
+        return session.getId();
+    }
+
+    public ChatCodec.Format getFormat() {
+        return format;
+    }
+
+    public boolean isOpen() {
+        return !closed && session.isOpen();
+    }
+
+    boolean isSynced() {
+        return synced;
+    }
+
+    void setSynced() {
+        this.synced = true;
+    }
+
+    /**
+     * 收到客户端的一帧时调用，超过限速时返回false，该帧应被丢弃
+     * @return
+     */
+    public boolean tryReceive() {
+        return inboundLimiter.tryAcquire();
+    }
+
+    /**
+     * 按本会话的格式取出帧并放入发送队列
+     * @param frame 待发送的帧
+     * @return 如果会话已关闭或因超出限制被关闭，返回false
+     * @throws IOException 编码失败
+     */
+    public boolean send(ChatFrame frame) throws IOException {
+        if (!isOpen()) {
+            return false;
+        }
+        return send(frame.get(format));
+    }
+
+    /**
+     * 把消息放入发送队列，不会阻塞调用线程
+     * @param message 待发送的消息
+     * @return 如果会话已关闭或因超出限制被关闭，返回false
+     */
+    public boolean send(WebSocketMessage<?> message) {
+        if (!isOpen()) {
+            return false;
+        }
+        if (!checkSendTime()) {
+            return false;
+        }
+        int size = this.bufferSize.addAndGet(message.getPayloadLength());
+        if (size > bufferSizeLimit) {
+            evict("buffer size " + size + " bytes exceeded the limit " + bufferSizeLimit + " bytes");
+            return false;
+        }
+        this.queue.add(message);
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * 检查当前这次发送是否已超过sendTimeLimit，超过时关闭会话。
+     * send()时会检查，心跳也会定时检查，阻塞在写操作上的会话即使不再有新消息也会被及时关闭。
+     * @return 会话已关闭或因超时被关闭时返回false
+     */
+    public boolean checkSendTime() {
+        if (this.closed) {
+            return false;
+        }
+        long start = this.sendStartTime;
+        if (start > 0 && System.currentTimeMillis() - start > sendTimeLimit) {
+            evict("send time " + (System.currentTimeMillis() - start) + " ms exceeded the limit " + sendTimeLimit + " ms");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 发送一个心跳Ping，内容是发送时刻的System.nanoTime()，客户端回复的Pong会原样带回
+     * @return 如果会话已关闭或因超出限制被关闭，返回false
+     */
+    public boolean ping() {
+        this.missedPongs.incrementAndGet();
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        payload.putLong(0, System.nanoTime());
+        return send(new PingMessage(payload));
+    }
+
+    /**
+     * 收到Pong，清零未回复计数并计算往返时间
+     * @param message
+     * @return 往返时间(毫秒)，Pong内容不是本服务器发出的Ping时返回-1
+     */
+    public long onPong(PongMessage message) {
+        this.missedPongs.set(0);
+        ByteBuffer payload = message.getPayload();
+        if (payload.remaining() != 8) {
+            return -1;
+        }
+        long rtt = (System.nanoTime() - payload.getLong(payload.position())) / 1_000_000;
+        this.roundTripMillis = rtt;
+        return rtt;
+    }
+
+    public int getMissedPongs() {
+        return missedPongs.get();
+    }
+
+    public long getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
+    /**
+     * 关闭会话并丢弃尚未发送的消息
+     * @param status 关闭原因
+     */
+    public void close(CloseStatus status) {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.queue.clear();
+        this.bufferSize.set(0);
+        //正在阻塞写的会话，close()也可能阻塞，因此交给线程池执行
+        try {
+            this.executor.execute(() -> closeSession(status));
+        } catch (RejectedExecutionException e) {
+            //线程池已满，只能在当前线程关闭
+            closeSession(status);
+        }
+    }
+
+    private void closeSession(CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("close websocket session {} failed: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    private void evict(String reason) {
+        logger.warn("evict slow websocket session {}: {}", session.getId(), reason);
+        close(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    /**
+     * 同一个BinaryMessage会发给多个会话，而发送时会移动ByteBuffer的position，
+     * 因此每次发送使用一个共享底层数据的副本。
+     */
+    private static WebSocketMessage<?> forSend(WebSocketMessage<?> message) {
+        if (message instanceof BinaryMessage) {
+            BinaryMessage binary = (BinaryMessage) message;
+            return new BinaryMessage(binary.getPayload().duplicate(), binary.isLast());
+        }
+        return message;
+    }
+
+    private void scheduleDrain() {
+        if (!this.queue.isEmpty() && this.draining.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                //TaskRejectedException也是RejectedExecutionException
+                this.draining.set(false);
+                evict("send executor queue is full");
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            WebSocketMessage<?> message;
+            while (!this.closed && (message = this.queue.poll()) != null) {
+                this.bufferSize.addAndGet(-message.getPayloadLength());
+                this.sendStartTime = System.currentTimeMillis();
+                try {
+                    this.session.sendMessage(forSend(message));
+                } finally {
+                    this.sendStartTime = 0;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("send message to websocket session {} failed: {}", session.getId(), e.getMessage());
+            close(CloseStatus.SESSION_NOT_RELIABLE);
+        } finally {
+            this.draining.set(false);
+        }
+        //释放标记后再检查一次，避免刚入队的消息无人发送
+        if (!this.closed) {
+            scheduleDrain();
+        }
+    }
+}
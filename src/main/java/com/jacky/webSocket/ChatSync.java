@@ -0,0 +1,26 @@
+package com.jacky.webSocket;
+
+import java.util.List;
+
+/**
+ * @author jacky
+ * @time 2021-01-27 21:40
+ * @discription 重连时补发的消息
+ *              序号只在同一个聊天室实例内有意义：集群中每个节点各自分配序号，
+ *              聊天室被移除后重新创建、服务器重启也会得到新的序号空间。
+ *              epoch标识当前的序号空间，客户端重连时与since一起带回，不一致时服务器发送完整的历史消息。
+ */
+class ChatSync{
+    public long since;
+    //true表示缺失的消息已超出保留的历史范围，messages是完整的历史消息，客户端应清空后重新显示
+    public boolean reset;
+    public String epoch;
+    public List<ChatMessage> messages;
+
+    ChatSync(long since, boolean reset, String epoch, List<ChatMessage> messages) {
+        this.since = since;
+        this.reset = reset;
+        this.epoch = epoch;
+        this.messages = messages;
+    }
+}
@@ -0,0 +1,44 @@
+package com.jacky.webSocket;
+
+/**
+ * @author jacky
+ * @time 2021-01-28 20:15
+ * @discription 令牌桶
+ *              令牌按固定速率补充，最多积攒burst个，每收到一帧消耗一个令牌，
+ *              没有令牌时说明客户端发送过快，该帧被丢弃。
+ *              允许短时间内的突发，但长期的平均速率不会超过rate。
+ */
+class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefillTime;
+
+    /**
+     * @param rate 每秒补充的令牌数
+     * @param burst 桶的容量，即允许的最大突发帧数
+     */
+    TokenBucket(double rate, int burst) {
+        this.tokensPerNano = rate / 1_000_000_000L;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @return 有令牌时返回true
+     */
+    synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(capacity, this.tokens + (now - this.lastRefillTime) * tokensPerNano);
+        this.lastRefillTime = now;
+        if (this.tokens < 1) {
+            return false;
+        }
+        this.tokens -= 1;
+        return true;
+    }
+}
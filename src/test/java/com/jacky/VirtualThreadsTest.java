@@ -0,0 +1,117 @@
+package com.jacky;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.loader.WebappClassLoaderBase;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.coyote.AbstractProtocol;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.jms.config.JmsListenerEndpointRegistry;
+import org.springframework.jms.listener.DefaultMessageListenerContainer;
+import org.springframework.jms.listener.MessageListenerContainer;
+import org.springframework.scheduling.annotation.ScheduledAnnotationBeanPostProcessor;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author jacky
+ * @time 2021-02-06 21:30
+ * @discription 启动嵌入式Tomcat和整个Spring容器，检查请求、定时任务、聊天室发送、异步查询和JMS监听器的线程：
+ *              mvn -Pvirtual-threads test(-Dthreads.virtual=true)时都必须是虚拟线程，否则都必须是平台线程。
+ */
+public class VirtualThreadsTest {
+
+    static Tomcat tomcat;
+    static WebApplicationContext context;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        // 系统属性优先于jdbc.properties，使用内存数据库，不改动工作目录下的testdb:
+        System.setProperty("jdbc.url", "jdbc:hsqldb:mem:virtual-threads");
+        tomcat = WebConfig.createTomcat(0);
+        tomcat.start();
+        Context ctx = (Context) tomcat.getHost().findChild("");
+        context = WebApplicationContextUtils.findWebApplicationContext(ctx.getServletContext());
+        assertNotNull("web application failed to start", context);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (tomcat != null) {
+            // 应用类都在系统类路径上，不需要WebappLoader的泄漏清理，它在JDK 9以上还需要--add-opens java.base/java.io:
+            Context ctx = (Context) tomcat.getHost().findChild("");
+            WebappClassLoaderBase loader = (WebappClassLoaderBase) ctx.getLoader().getClassLoader();
+            loader.setClearReferencesObjectStreamClassCaches(false);
+            loader.setClearReferencesRmiTargets(false);
+            loader.setClearReferencesThreadLocals(false);
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    @Test
+    public void connector() throws Exception {
+        Executor executor = ((AbstractProtocol<?>) tomcat.getConnector().getProtocolHandler()).getExecutor();
+        assertEquals(VirtualThreads.isEnabled(), runsOnVirtualThread(executor));
+    }
+
+    @Test
+    public void scheduler() throws Exception {
+        assertEquals(VirtualThreads.isEnabled(), runsOnVirtualThread(context.getBean("chatTaskScheduler", Executor.class)));
+        assertEquals(VirtualThreads.isEnabled(), runsOnVirtualThread(context.getBean("taskScheduler", Executor.class)));
+        // @Scheduled定时任务使用taskScheduler，不与合并窗口共用chatTaskScheduler:
+        Field field = ScheduledAnnotationBeanPostProcessor.class.getDeclaredField("registrar");
+        field.setAccessible(true);
+        ScheduledTaskRegistrar registrar = (ScheduledTaskRegistrar) field.get(context.getBean(ScheduledAnnotationBeanPostProcessor.class));
+        assertSame(context.getBean("taskScheduler"), registrar.getScheduler());
+    }
+
+    @Test
+    public void executors() throws Exception {
+        assertEquals(VirtualThreads.isEnabled(), runsOnVirtualThread(context.getBean("chatSendExecutor", Executor.class)));
+        assertEquals(VirtualThreads.isEnabled(), runsOnVirtualThread(context.getBean("apiExecutor", Executor.class)));
+    }
+
+    @Test
+    public void jmsListeners() throws Exception {
+        JmsListenerEndpointRegistry registry = context.getBean(JmsListenerEndpointRegistry.class);
+        assertFalse(registry.getListenerContainers().isEmpty());
+        for (MessageListenerContainer container : registry.getListenerContainers()) {
+            // DefaultMessageListenerContainer没有提供taskExecutor的getter:
+            Field field = DefaultMessageListenerContainer.class.getDeclaredField("taskExecutor");
+            field.setAccessible(true);
+            assertEquals(VirtualThreads.isEnabled(), runsOnVirtualThread((Executor) field.get(container)));
+        }
+    }
+
+    private static boolean runsOnVirtualThread(Executor executor) throws Exception {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        executor.execute(() -> result.complete(isVirtual(Thread.currentThread())));
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 项目按Java 8编译，通过反射调用JDK 21的Thread.isVirtual()，旧JDK上没有虚拟线程
+     */
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.jacky.jdbc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author jacky
+ * @time 2021-02-04 21:40
+ * @discription 用两个HSQLDB内存库作为主库和只读库，检查ReadWriteRoutingDataSource的路由：
+ *              只读事务使用只读库，读写事务和不在事务中的操作使用主库；
+ *              只读库的心跳过期或不存在时，只读事务改用主库。
+ *              复制由测试自己完成：把主库的心跳写入只读库。
+ */
+public class ReadWriteRoutingTest {
+
+    static final AtomicInteger databases = new AtomicInteger();
+
+    JdbcTemplate primaryTemplate;
+    JdbcTemplate replicaTemplate;
+    ReadWriteRoutingDataSource routing;
+    ReplicaLagMonitor monitor;
+    JdbcTemplate jdbcTemplate;
+    TransactionTemplate readOnlyTransaction;
+    TransactionTemplate readWriteTransaction;
+
+    @Before
+    public void setUp() throws Exception {
+        int n = databases.incrementAndGet();
+        primaryTemplate = new JdbcTemplate(createDatabase("primary" + n, "primary"));
+        replicaTemplate = new JdbcTemplate(createDatabase("replica" + n, "replica"));
+        replicaTemplate.update(ReplicaLagMonitor.CREATE_SQL);
+        routing = new ReadWriteRoutingDataSource(primaryTemplate.getDataSource(), replicaTemplate.getDataSource());
+
+        monitor = new ReplicaLagMonitor();
+        monitor.dataSource = routing;
+        monitor.maxLag = 5000;
+        monitor.init();
+
+        jdbcTemplate = new JdbcTemplate(routing);
+        ReadWriteTransactionManager transactionManager = new ReadWriteTransactionManager(routing);
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        readWriteTransaction = new TransactionTemplate(transactionManager);
+    }
+
+    @After
+    public void tearDown() {
+        primaryTemplate.execute("SHUTDOWN");
+        replicaTemplate.execute("SHUTDOWN");
+    }
+
+    @Test
+    public void routeReadOnlyTransactionsToReplica() {
+        replicate(0);
+        monitor.check();
+        assertTrue(routing.isReplicaAvailable());
+
+        assertEquals("replica", readOnlyTransaction.execute(status -> whoami()));
+        // 只读事务结束后，当前线程上的只读标记已清除，不在事务中的操作使用主库:
+        assertEquals("primary", whoami());
+        assertEquals("primary", readWriteTransaction.execute(status -> whoami()));
+        assertEquals("replica", readOnlyTransaction.execute(status -> whoami()));
+        assertEquals(2, routing.getReplicaConnections());
+        assertEquals(0, routing.getFallbackConnections());
+    }
+
+    @Test
+    public void writeToPrimary() {
+        replicate(0);
+        monitor.check();
+        readWriteTransaction.execute(status -> jdbcTemplate.update("INSERT INTO whoami (name) VALUES ('written')"));
+        jdbcTemplate.update("INSERT INTO whoami (name) VALUES ('written')");
+        assertEquals(2, count(primaryTemplate, "written"));
+        assertEquals(0, count(replicaTemplate, "written"));
+    }
+
+    @Test
+    public void fallBackToPrimaryWhenHeartbeatIsStale() {
+        replicate(0);
+        monitor.check();
+        assertTrue(routing.isReplicaAvailable());
+
+        // 只读库上的心跳比主库落后10秒:
+        replicate(10000);
+        monitor.check();
+        assertFalse(routing.isReplicaAvailable());
+        assertTrue(monitor.getLag() > monitor.getMaxLag());
+        assertEquals("primary", readOnlyTransaction.execute(status -> whoami()));
+        assertEquals(1, routing.getFallbackConnections());
+
+        // 追上后切回只读库:
+        replicate(0);
+        monitor.check();
+        assertEquals("replica", readOnlyTransaction.execute(status -> whoami()));
+    }
+
+    @Test
+    public void fallBackToPrimaryWhenHeartbeatIsMissing() {
+        // 还没有复制过心跳:
+        monitor.check();
+        assertFalse(routing.isReplicaAvailable());
+        assertEquals(-1, monitor.getLag());
+        assertEquals("primary", readOnlyTransaction.execute(status -> whoami()));
+
+        // 只读库上没有心跳表，查询失败:
+        replicate(0);
+        monitor.check();
+        assertTrue(routing.isReplicaAvailable());
+        replicaTemplate.update("DROP TABLE replica_heartbeat");
+        monitor.check();
+        assertFalse(routing.isReplicaAvailable());
+        assertEquals("primary", readOnlyTransaction.execute(status -> whoami()));
+        assertEquals(2, routing.getFallbackConnections());
+    }
+
+    private static DriverManagerDataSource createDatabase(String database, String name) {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:hsqldb:mem:" + database, "sa", "");
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.update("CREATE TABLE whoami (name VARCHAR(20) NOT NULL)");
+        template.update("INSERT INTO whoami (name) VALUES (?)", name);
+        return dataSource;
+    }
+
+    /**
+     * 当前连接所在的库，即whoami表的第一行
+     */
+    private String whoami() {
+        return jdbcTemplate.queryForObject("SELECT name FROM whoami LIMIT 1", String.class);
+    }
+
+    private static int count(JdbcTemplate template, String name) {
+        return template.queryForObject("SELECT COUNT(*) FROM whoami WHERE name = ?", Integer.class, name);
+    }
+
+    /**
+     * 模拟复制：把主库的心跳写入只读库
+     * @param delay 只读库上的心跳比主库早多少毫秒
+     */
+    private void replicate(long delay) {
+        long ts = System.currentTimeMillis() - delay;
+        if (replicaTemplate.update(ReplicaLagMonitor.UPDATE_SQL, ts) == 0) {
+            replicaTemplate.update(ReplicaLagMonitor.INSERT_SQL, ts);
+        }
+    }
+}
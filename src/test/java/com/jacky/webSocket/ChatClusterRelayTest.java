@@ -0,0 +1,191 @@
+package com.jacky.webSocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+import org.apache.activemq.artemis.jms.client.ActiveMQJMSConnectionFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
+import org.springframework.jms.connection.CachingConnectionFactory;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * @author jacky
+ * @time 2021-01-23 17:10
+ * @discription 在嵌入式Artemis服务器(vm://0)上启动两个节点的ChatClusterRelay，每个节点的聊天室里有一个本地会话，
+ *              检查每个节点都把对方的消息广播给本地会话，而不会收到自己发出的消息。
+ */
+public class ChatClusterRelayTest {
+
+    static final String ROOM = "relay";
+
+    static EmbeddedActiveMQ broker;
+
+    ObjectMapper objectMapper = new ObjectMapper();
+    List<CachingConnectionFactory> connectionFactories = new ArrayList<>();
+    ChatClusterRelay node1;
+    ChatClusterRelay node2;
+    //各节点本地会话收到的帧
+    List<String> received1 = new CopyOnWriteArrayList<>();
+    List<String> received2 = new CopyOnWriteArrayList<>();
+
+    @BeforeClass
+    public static void startBroker() throws Exception {
+        broker = new EmbeddedActiveMQ();
+        broker.setConfiguration(new ConfigurationImpl().setPersistenceEnabled(false).setSecurityEnabled(false)
+                .addAcceptorConfiguration("in-vm", "vm://0"));
+        broker.start();
+    }
+
+    @AfterClass
+    public static void stopBroker() throws Exception {
+        broker.stop();
+    }
+
+    @Before
+    public void startNodes() throws Exception {
+        node1 = createRelay(received1);
+        node2 = createRelay(received2);
+        // Topic只投递给已订阅的消费者，等两个节点的监听容器都订阅上再发送:
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!(node1.container.isRegisteredWithDestination() && node2.container.isRegisteredWithDestination())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    @After
+    public void stopNodes() {
+        node1.destroy();
+        node2.destroy();
+        for (CachingConnectionFactory connectionFactory : connectionFactories) {
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void relayToOtherNodesOnly() throws Exception {
+        assertNotEquals(node1.getNodeId(), node2.getNodeId());
+        node1.relay(ROOM, new ChatMessage("alice", "from node1"));
+        node2.relay(ROOM, new ChatMessage("bob", "from node2"));
+
+        assertEquals("from node2", awaitMessages(received1, 1).get(0));
+        assertEquals("from node1", awaitMessages(received2, 1).get(0));
+        // 选择器过滤掉了自己发出的消息，再等一会也不会出现:
+        Thread.sleep(500);
+        assertEquals(1, messages(received1).size());
+        assertEquals(1, messages(received2).size());
+    }
+
+    @Test
+    public void relayKeepsOrder() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            node1.relay(ROOM, new ChatMessage("alice", "m" + i));
+        }
+        List<String> texts = awaitMessages(received2, 20);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("m" + i, texts.get(i));
+        }
+        assertEquals(0, messages(received1).size());
+    }
+
+    /**
+     * 按WebConfig中的chatRelayJmsTemplate和jmsListenerContainerFactory创建一个节点，
+     * 每个节点有自己的连接和聊天室，聊天室中有一个把收到的帧记录到received的会话
+     */
+    private ChatClusterRelay createRelay(List<String> received) throws Exception {
+        ActiveMQJMSConnectionFactory connectionFactory = new ActiveMQJMSConnectionFactory("vm://0");
+        CachingConnectionFactory cachingConnectionFactory = new CachingConnectionFactory(connectionFactory);
+        connectionFactories.add(cachingConnectionFactory);
+        JmsTemplate jmsTemplate = new JmsTemplate(cachingConnectionFactory);
+        jmsTemplate.setPubSubDomain(true);
+        jmsTemplate.setExplicitQosEnabled(true);
+        jmsTemplate.setDeliveryPersistent(false);
+        DefaultJmsListenerContainerFactory containerFactory = new DefaultJmsListenerContainerFactory();
+        containerFactory.setConnectionFactory(connectionFactory);
+
+        ChatCodec chatCodec = new ChatCodec();
+        chatCodec.objectMapper = objectMapper;
+        chatCodec.init();
+        ChatRoomRegistry chatRoomRegistry = new ChatRoomRegistry();
+        chatRoomRegistry.chatCodec = chatCodec;
+        chatRoomRegistry.chatLogStore = new ChatLogStore();
+        chatRoomRegistry.historyCapacity = 100;
+        chatRoomRegistry.maxRooms = 10;
+        chatRoomRegistry.idleTimeout = 600000;
+        // 在当前线程直接写出，不限速:
+        ChatSession chatSession = new ChatSession(recordingSession(received), ChatCodec.Format.JSON, Runnable::run,
+                1024 * 1024, 10000, new TokenBucket(1000, 1000));
+        chatRoomRegistry.joinRoom(ROOM, room -> room.join(chatSession, -1L, null));
+
+        ChatClusterRelay relay = new ChatClusterRelay();
+        relay.enabled = true;
+        relay.topic = "jms/topic/chat-test";
+        relay.objectMapper = objectMapper;
+        relay.chatRoomRegistry = chatRoomRegistry;
+        relay.chatRelayJmsTemplate = jmsTemplate;
+        relay.jmsListenerContainerFactory = containerFactory;
+        relay.init();
+        return relay;
+    }
+
+    /**
+     * 只实现ChatSession用到的方法的WebSocketSession，发送的文本帧记录到received
+     */
+    private static WebSocketSession recordingSession(List<String> received) {
+        String id = UUID.randomUUID().toString();
+        return (WebSocketSession) Proxy.newProxyInstance(ChatClusterRelayTest.class.getClassLoader(),
+                new Class<?>[]{WebSocketSession.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "isOpen":
+                            return true;
+                        case "sendMessage":
+                            received.add(((TextMessage) args[0]).getPayload());
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * 本地会话收到的广播中的消息，跳过加入时的同步帧
+     */
+    private List<String> messages(List<String> received) throws Exception {
+        List<String> texts = new ArrayList<>();
+        for (String frame : received.subList(1, received.size())) {
+            for (ChatMessage message : objectMapper.readValue(frame, ChatMessage[].class)) {
+                texts.add(message.text);
+            }
+        }
+        return texts;
+    }
+
+    private List<String> awaitMessages(List<String> received, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        List<String> texts = messages(received);
+        while (texts.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            texts = messages(received);
+        }
+        assertEquals(count, texts.size());
+        return texts;
+    }
+}